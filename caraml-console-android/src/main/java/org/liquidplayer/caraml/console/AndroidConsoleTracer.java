@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2019 Eric Lange
+ *
+ * Distributed under the MIT License.  See LICENSE.md at
+ * https://github.com/LiquidPlayer/caraml-console for terms and conditions.
+ */
+package org.liquidplayer.caraml.console;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Trace;
+
+/**
+ * Reports console sections to android.os.Trace, so that they show up in systrace and the
+ * Android Studio profiler alongside the app's own sections.  Does nothing before API 18.
+ */
+public final class AndroidConsoleTracer implements ConsoleTracer {
+    private static final boolean SUPPORTED =
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+
+    @Override @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    public void beginSection(String name) {
+        if (SUPPORTED) {
+            Trace.beginSection(name);
+        }
+    }
+
+    @Override @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    public void endSection(String name) {
+        if (SUPPORTED) {
+            Trace.endSection();
+        }
+    }
+}
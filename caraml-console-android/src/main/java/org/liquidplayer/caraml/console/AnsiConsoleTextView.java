@@ -7,353 +7,225 @@
 package org.liquidplayer.caraml.console;
 
 import android.content.Context;
-import android.os.Handler;
-import android.os.Looper;
 
 import androidx.annotation.Keep;
 import androidx.appcompat.widget.AppCompatTextView;
-import androidx.core.text.HtmlCompat;
 
-import android.text.Html;
-import android.text.TextUtils;
+import android.text.Editable;
+import android.text.Layout;
+import android.text.SpannableStringBuilder;
 import android.util.AttributeSet;
+import android.view.View;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.util.ArrayList;
-import java.util.concurrent.Semaphore;
 
-class AnsiConsoleTextView extends AppCompatTextView {
+class AnsiConsoleTextView extends AppCompatTextView implements ConsoleDisplay {
     public AnsiConsoleTextView(Context context, AttributeSet attrs) {
         super(context, attrs);
-        stream = new ConsoleOutputStream(new ByteArrayOutputStream());
-    }
-
-    private final static String UTF8 = "UTF-8";
-
-    public void print(final String string) {
-        stream.print(string, false);
-    }
-    public void println(final String string) {
-        stream.print(string, true);
-    }
-
-    interface Listener {
-        void onDisplayUpdated();
+        setText(getText(), BufferType.EDITABLE);
+        display = getEditableText();
+        historyLength = display.length();
+        historyLines.addLines(display, 0);
     }
 
     private ArrayList<Listener> listeners = new ArrayList<>();
 
+    @Override
     public void addListener(Listener listener) {
         if (!listeners.contains(listener))
             listeners.add(listener);
     }
 
-    @SuppressWarnings("unused") @Keep
+    @Override @SuppressWarnings("unused") @Keep
     public void removeListener(Listener listener) {
         listeners.remove(listener);
     }
 
-    private final ConsoleOutputStream stream;
-
-    public void setDisplayText(CharSequence text) {
-        if (stream != null) {
-            stream.displayText = text;
-            setText(text);
-            stream.index = stream.displayText.length();
-        }
+    private ConsoleTerminal terminal;
+    private ConsoleOutputStream stream;
+
+    /*
+     * What is displayed: the rendered scrollback followed by the screen.  Only the screen part
+     * is replaced on each render; history is appended to, and trimmed from the front.
+     */
+    private Editable display;
+    /* Number of chars at the start of 'display' that are history */
+    private int historyLength;
+    /* Where each line of history starts */
+    private final LineIndex historyLines = new LineIndex();
+    /* The part of 'display' that changes on a render */
+    private final SpannableStringBuilder update = new SpannableStringBuilder();
+    /* Number of the next scrollback line to render, see ScrollbackBuffer */
+    private long renderedLines = 0;
+    private int renderedGeneration = 0;
+
+    private TextStyles styles = new TextStyles(0xffffffff, 0xff000000);
+
+    @Override
+    public void setTerminal(ConsoleTerminal terminal) {
+        if (stream == terminal.stream) return;
+        this.terminal = terminal;
+        stream = terminal.stream;
+        synchronized (stream.lock) {
+            renderedLines = stream.getScrollback().getFirstLineNumber();
+            renderedGeneration = stream.getScrollbackGeneration();
+        }
+        terminal.setListener(onConsoleUpdated);
+        scheduler.invalidate();
     }
 
-    private class ConsoleOutputStream extends HtmlAnsiOutputStream {
-
-        ConsoleOutputStream(ByteArrayOutputStream byteArrayOutputStream) {
-            super(byteArrayOutputStream);
-            os = byteArrayOutputStream;
-            displayText = getText();
-            index = displayText.length();
-            consoleThread = new Thread(consoleThreadRunnable);
-            consoleThread.start();
-        }
-
-        private ByteArrayOutputStream os;
-
-        private int index;
-        private CharSequence displayText;
-
-        private Boolean refreshQueued = false;
-        private final Object lock = new Object();
+    @Override
+    public void setDefaultColors(int foreground, int background) {
+        styles = new TextStyles(foreground, background);
+    }
 
-        private Runnable updateText = new Runnable() {
-            @Override
-            public void run() {
-                synchronized (lock) {
-                    setText(displayText);
-                    refreshQueued = false;
-                }
-                new Handler(Looper.getMainLooper()).post(new Runnable() {
-                    @Override
-                    public void run() {
-                        for (Listener listener : listeners) {
-                            listener.onDisplayUpdated();
-                        }
-                    }
-                });
-            }
-        };
+    @Override
+    public int getColumnWidth() {
+        return Math.round(getPaint().measureText("X") * getTextScaleX());
+    }
 
-        private final Object consoleThreadLock = new Object();
-        private final Semaphore consoleSemaphore = new Semaphore(0);
-        private final ArrayList<String> consoleStrings = new ArrayList<>();
+    @Override
+    public int getContentWidth() {
+        return getMeasuredWidth() - getTotalPaddingLeft() - getTotalPaddingRight();
+    }
 
-        private final Thread consoleThread;
-        /** @noinspection FieldCanBeLocal */
-        private final Runnable consoleThreadRunnable = new Runnable() {
-            @Override
-            public void run() {
-                while (true) {
-                    try {
-                        int strings;
-                        String out = "";
-                        consoleSemaphore.acquire();
-                        synchronized (consoleThreadLock) {
-                            strings = consoleStrings.size();
-                            for (String string : consoleStrings) {
-                                out = out.concat(string);
-                            }
-                            consoleStrings.clear();
-                        }
-                        try {
-                            write(out.getBytes(UTF8));
-                            flush();
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                        if (strings > 1) {
-                            consoleSemaphore.acquire(strings - 1);
-                        }
-                    } catch (InterruptedException e) {
-                        break;
-                    }
-                }
-            }
-        };
+    @Override
+    public int getLineTop(int line) {
+        Layout layout = getLayout();
+        if (layout == null) return 0;
+        int offset = (line < historyLines.size()) ? historyLines.start(Math.max(0, line))
+                : historyLength;
+        return getTotalPaddingTop() + layout.getLineTop(layout.getLineForOffset(offset));
+    }
 
-        @Override
-        public void close() throws IOException {
-            super.close();
-            consoleThread.interrupt();
-        }
+    @Override
+    public CharSequence getDisplayText() {
+        return getText();
+    }
 
-        void print(String string, final boolean addCr) {
-            if (addCr) string = string.concat("\n");
-            synchronized (consoleThreadLock) {
-                consoleStrings.add(string);
-                consoleSemaphore.release();
+    @Override
+    public void setDisplayText(CharSequence text) {
+        int maxLines = 0;
+        if (stream != null) {
+            synchronized (stream.lock) {
+                stream.clear();
+                renderedLines = stream.getScrollback().getLineCount();
+                renderedGeneration = stream.getScrollbackGeneration();
+                maxLines = stream.getScrollback().getMaxLines();
             }
         }
+        setText(text, BufferType.EDITABLE);
+        display = getEditableText();
+        historyLength = display.length();
+        historyLines.clear();
+        historyLines.addLines(display, 0);
+        trimHistory(maxLines);
+    }
 
-        @Override
-        public void flush() throws IOException {
-            synchronized (lock) {
-                CharSequence text_;
+    @Override
+    public void setMaxFramesPerSecond(int fps) {
+        scheduler.setMaxFramesPerSecond(fps);
+    }
 
-                if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.N) {
-                    text_ = HtmlCompat.fromHtml(new String(os.toByteArray(), UTF8),
-                            HtmlCompat.FROM_HTML_MODE_LEGACY);
-                } else {
-                    text_ = HtmlCompat.fromHtml(new String(os.toByteArray(), UTF8),
-                            HtmlCompat.FROM_HTML_MODE_LEGACY);
-                }
-                os.reset();
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        updateVisibility();
+    }
 
-                if (index == displayText.length()) {
-                    displayText = TextUtils.concat(displayText, text_);
-                } else if (index < displayText.length()) {
-                    if (index + text_.length() >= displayText.length()) {
-                        displayText = TextUtils.concat(displayText.subSequence(0, index), text_);
-                    } else {
-                        CharSequence first = displayText.subSequence(0, index);
-                        CharSequence last =
-                                displayText.subSequence(index+text_.length(), displayText.length());
-                        displayText = TextUtils.concat(first, text_, last);
-                    }
-                } else {
-                    android.util.Log.e("Console flush","index is greater than total buffer length");
-                    displayText = TextUtils.concat(displayText, text_);
-                    index = displayText.length();
-                }
-                index += text_.length();
+    @Override
+    protected void onVisibilityChanged(View changedView, int visibility) {
+        super.onVisibilityChanged(changedView, visibility);
+        updateVisibility();
+    }
 
-                if (!refreshQueued) {
-                    refreshQueued = true;
-                    new Handler(Looper.getMainLooper()).post(updateText);
-                }
-            }
+    private void updateVisibility() {
+        // may be called from the super constructor, before 'scheduler' is set
+        if (scheduler != null) {
+            scheduler.setVisible(getWindowVisibility() == VISIBLE && isShown());
         }
+    }
 
+    private final ConsoleOutputStream.Listener onConsoleUpdated =
+            new ConsoleOutputStream.Listener() {
         @Override
-        protected void processEraseScreen(int eraseOption) throws IOException {
-            synchronized (lock) {
-                switch(eraseOption) {
-                    case ERASE_SCREEN_TO_END:
-                        displayText = displayText.subSequence(0,
-                                Math.min(index,displayText.length()));
-                        break;
-                    case ERASE_SCREEN_TO_BEGINING:
-                    case ERASE_SCREEN:
-                        // FIXME
-                        displayText = "";
-                        index = 0;
-                        break;
-                }
-            }
-            flush();
+        public void onConsoleUpdated() {
+            scheduler.invalidate();
         }
+    };
 
+    private final RenderScheduler scheduler = new RenderScheduler(new RenderScheduler.Renderer() {
         @Override
-        protected void processCursorTo(int row, int col) throws IOException {
-            synchronized (lock) {
-                // Move to row 'row'
-                index = 0;
-                int count = 1;
-                String text = displayText.toString();
-                while (count < row && index < text.length()) {
-                    int next = text.indexOf('\n', index);
-                    if (next < 0) break;
-                    count++;
-                    index = next + 1;
-                }
-
-                // Move to column 'col'
-                for (count = 1;
-                     count < col && index < text.length() && text.charAt(index) != '\n';
-                     count++)
-                    index++;
+        public void render() {
+            AnsiConsoleTextView.this.render();
+            for (Listener listener : listeners) {
+                listener.onDisplayUpdated();
             }
-            flush();
         }
-
-        private int[] currentCursorPos() {
-            int[] pos = {1,1};
-            String text = displayText.toString();
-
-            for (int i=0; i<index; i++) {
-                if (text.charAt(i) == '\n') {
-                    pos[0] ++;
-                    pos[1] = 0;
-                } else {
-                    pos[1] ++;
-                }
+    });
+
+    /*
+     * Brings 'display' up to date with the model.  In the usual case, where output was only
+     * appended, the edit is confined to the end of the text and the layout is only redone from
+     * there.  The whole text is replaced only when the scrollback has been cleared.
+     */
+    private void render() {
+        long start = System.nanoTime();
+        long latency;
+        boolean reset = false;
+        int newHistory;
+        int maxLines;
+        update.clear();
+        update.clearSpans();
+        synchronized (stream.lock) {
+            latency = terminal.takeDisplayLatency();
+            if (renderedGeneration != stream.getScrollbackGeneration()) {
+                reset = true;
+                historyLength = 0;
+                historyLines.clear();
+                renderedGeneration = stream.getScrollbackGeneration();
             }
-
-            return pos;
-        }
-
-        @Override
-        protected void processCursorToColumn(int x) throws IOException {
-            int[] pos = currentCursorPos();
-            processCursorTo(pos[0], Math.max(1,x));
-        }
-
-        @Override
-        protected void processCursorUpLine(int count) throws IOException {
-            int[] pos = currentCursorPos();
-            processCursorTo(Math.max(pos[0] - count,1), 1);
-        }
-
-        @Override
-        protected void processCursorDownLine(int count) throws IOException {
-            int[] pos = currentCursorPos();
-            processCursorTo(pos[0] + count, 1);
-        }
-
-        @Override
-        protected void processCursorLeft(int count) throws IOException {
-            int[] pos = currentCursorPos();
-            processCursorTo(pos[0], Math.max(pos[1] - count,1));
-        }
-
-        @Override
-        protected void processCursorRight(int count) throws IOException {
-            int[] pos = currentCursorPos();
-            processCursorTo(pos[0], pos[1] + count);
-        }
-
-        @Override
-        protected void processCursorDown(int count) throws IOException {
-            int[] pos = currentCursorPos();
-            processCursorTo(pos[0] + count, pos[1]);
-        }
-
-        @Override
-        protected void processCursorUp(int count) throws IOException {
-            int[] pos = currentCursorPos();
-            processCursorTo(Math.max(pos[0] - count,1), pos[1]);
-        }
-
-        private final ArrayList<Integer[]> cursorPositionStack = new ArrayList<>();
-
-        @Override
-        protected void processRestoreCursorPosition() throws IOException {
-            if (cursorPositionStack.size() > 0) {
-                Integer [] pos = cursorPositionStack.get(cursorPositionStack.size()-1);
-                cursorPositionStack.remove(cursorPositionStack.size()-1);
-
-                processCursorTo(pos[0], pos[1]);
+            ScrollbackBuffer scrollback = stream.getScrollback();
+            maxLines = scrollback.getMaxLines();
+            // Lines that were evicted before they were ever rendered are skipped
+            long first = scrollback.getFirstLineNumber();
+            renderedLines = Math.max(renderedLines, first);
+            for (; renderedLines < scrollback.getLineCount(); renderedLines++) {
+                historyLines.add(historyLength + update.length());
+                styles.append(update, scrollback.get((int) (renderedLines - first)));
+                update.append('\n');
+            }
+            newHistory = update.length();
+
+            styles.append(update, stream.getPendingLine());
+            ConsoleScreen screen = stream.getScreen();
+            for (int row = 0; row < screen.getUsedRows(); row++) {
+                styles.append(update, stream.getScreenLine(row));
+                if (row < screen.getUsedRows() - 1 && !screen.isWrapped(row)) {
+                    update.append('\n');
+                }
             }
         }
 
-        @Override
-        protected void processSaveCursorPosition() {
-            int [] p = currentCursorPos();
-            Integer [] pp = {p[0],p[1]};
-            cursorPositionStack.add(pp);
-        }
-
-        @Override
-        protected void processScrollDown(int optionInt) {
-            android.util.Log.d("ConsoleTextView", "processScrollDown");
-        }
-
-        @Override
-        protected void processScrollUp(int optionInt) {
-            android.util.Log.d("ConsoleTextView", "processScrollUp");
+        if (reset) {
+            setText(update, BufferType.EDITABLE);
+            display = getEditableText();
+        } else {
+            display.replace(historyLength, display.length(), update);
         }
+        historyLength += newHistory;
+        trimHistory(maxLines);
+        terminal.recordRender(System.nanoTime() - start, latency);
+    }
 
-        @Override
-        protected void processEraseLine(int eraseOption) throws IOException {
-            synchronized (lock) {
-                switch(eraseOption) {
-                    case ERASE_LINE_TO_END: {
-                        String dt = displayText.toString();
-                        int next = dt.indexOf('\n', index);
-                        if (next >= 0) {
-                            displayText = TextUtils.concat(displayText.subSequence(0, index)
-                                    ,displayText.subSequence(next,dt.length()));
-                        } else {
-                            displayText = displayText.subSequence(0, index);
-                        }
-                        break;
-                    }
-                    case ERASE_LINE_TO_BEGINING: {
-                        String dt = displayText.toString();
-                        int currIndex = index;
-                        int[] currPos = currentCursorPos();
-                        processCursorTo(currPos[0], 1);
-                        displayText = TextUtils.concat(displayText.subSequence(0, index)
-                                , displayText.subSequence(currIndex, dt.length()));
-                        break;
-                    }
-                    case ERASE_LINE: {
-                        int[] currPos = currentCursorPos();
-                        processCursorTo(currPos[0], 1);
-                        processEraseLine(ERASE_LINE_TO_END);
-                        break;
-                    }
-                }
-            }
-            flush();
+    /* Drops the oldest displayed lines beyond the scrollback limit */
+    private void trimHistory(int maxLines) {
+        int excess = historyLines.size() - maxLines;
+        if (maxLines > 0 && excess > 0) {
+            int end = historyLines.start(excess);
+            display.delete(0, end);
+            historyLength -= end;
+            historyLines.removeFirst(excess);
         }
-
     }
 }
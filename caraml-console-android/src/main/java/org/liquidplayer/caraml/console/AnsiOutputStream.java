@@ -24,7 +24,7 @@ import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.util.ArrayList;
+import java.nio.charset.Charset;
 
 /**
  * A ANSI output stream extracts ANSI escape codes written to 
@@ -44,6 +44,7 @@ import java.util.ArrayList;
 class AnsiOutputStream extends FilterOutputStream {
 
     static private final byte[] REST_CODE = resetCode();
+    static private final Charset UTF8 = Charset.forName("UTF-8");
 
     AnsiOutputStream(OutputStream os) {
         super(os);
@@ -53,7 +54,25 @@ class AnsiOutputStream extends FilterOutputStream {
     private byte[] buffer = new byte[MAX_ESCAPE_SEQUENCE_LENGTH];
     private int pos = 0;
     private int startOfValue;
-    private final ArrayList<Object> options = new ArrayList<>();
+
+    /*
+     * Parameters of the escape sequence being parsed are accumulated in place so that
+     * parsing a sequence does not allocate.  A bit set in 'defaultParameters' means the
+     * parameter at that index was omitted (e.g. the first one in ESC[;5H).
+     */
+    private final static int MAX_PARAMETERS = 32;
+    private final int[] parameters = new int[MAX_PARAMETERS];
+    private int parameterCount = 0;
+    private int defaultParameters = 0;
+    private int parameterFlags = 0;
+    private int parameterValue = 0;
+
+    private static final int FLAG_PRIVATE = 1;   // '?' marker
+    private static final int FLAG_EQUALS = 2;    // '=' marker
+    private static final int FLAG_STRING = 4;    // a quoted string argument was seen
+    private static final int FLAG_OVERFLOW = 8;  // more than MAX_PARAMETERS
+
+    private static final int MAX_PARAMETER_VALUE = 65535;
 
     private static final int LOOKING_FOR_FIRST_ESC_CHAR = 0;
     private static final int LOOKING_FOR_SECOND_ESC_CHAR = 1;
@@ -73,16 +92,119 @@ class AnsiOutputStream extends FilterOutputStream {
     private static final int BEL = 7;
     private static final int SECOND_ST_CHAR = '\\';
 
-    // TODO: implement to get perf boost: public void write(byte[] b, int off, int len)
+    /**
+     * Bulk write.  Runs of plain text between escape sequences are handed to
+     * {@link #processText(byte[], int, int)} in a single call; only the bytes of an
+     * escape sequence go through the state machine.
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len > b.length)
+            throw new IndexOutOfBoundsException();
+
+        final int end = off + len;
+        int i = off;
+        while (i < end) {
+            if (state == LOOKING_FOR_FIRST_ESC_CHAR) {
+                int start = i;
+                while (i < end && b[i] != FIRST_ESC_CHAR) {
+                    i++;
+                }
+                if (i > start) {
+                    processText(b, start, i - start);
+                }
+                if (i == end) {
+                    break;
+                }
+            }
+            process(b[i++] & 0xff);
+        }
+    }
 
     public void write(int data) throws IOException {
+        process(data);
+    }
+
+    /**
+     * Character write.  Works like {@link #write(byte[], int, int)} but on UTF-16 input,
+     * so text that is already a Java string does not need to be encoded to bytes first.
+     * Plain-text runs are handed to {@link #processText(char[], int, int)}.
+     */
+    public void write(char[] c, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len > c.length)
+            throw new IndexOutOfBoundsException();
+
+        final int end = off + len;
+        int i = off;
+        while (i < end) {
+            if (state == LOOKING_FOR_FIRST_ESC_CHAR) {
+                int start = i;
+                while (i < end && c[i] != FIRST_ESC_CHAR) {
+                    i++;
+                }
+                if (i > start) {
+                    processText(c, start, i - start);
+                }
+                if (i == end) {
+                    break;
+                }
+            }
+            processChar(c[i++]);
+        }
+    }
+
+    public void write(CharSequence s) throws IOException {
+        write(s, 0, s.length());
+    }
+
+    public void write(CharSequence s, int start, int end) throws IOException {
+        if (s instanceof String) {
+            // String.getChars() is a straight array copy, so go through a scratch buffer
+            // rather than charAt() for each character
+            String string = (String) s;
+            while (start < end) {
+                int n = Math.min(end - start, chars.length);
+                string.getChars(start, start + n, chars, 0);
+                write(chars, 0, n);
+                start += n;
+            }
+        } else {
+            while (start < end) {
+                int n = Math.min(end - start, chars.length);
+                for (int i = 0; i < n; i++) {
+                    chars[i] = s.charAt(start + i);
+                }
+                write(chars, 0, n);
+                start += n;
+            }
+        }
+    }
+
+    private final char[] chars = new char[1024];
+
+    private void processChar(int c) throws IOException {
+        if (c < 0x80) {
+            process(c);
+        } else if (c < 0x800) {
+            // Only an OSC label can legitimately contain non-ASCII; keep it UTF-8 in the
+            // sequence buffer like the byte path does
+            process(0xc0 | (c >> 6));
+            process(0x80 | (c & 0x3f));
+        } else {
+            process(0xe0 | (c >> 12));
+            process(0x80 | ((c >> 6) & 0x3f));
+            process(0x80 | (c & 0x3f));
+        }
+    }
+
+    private void process(int data) throws IOException {
         switch (state) {
             case LOOKING_FOR_FIRST_ESC_CHAR:
                 if (data == FIRST_ESC_CHAR) {
                     buffer[pos++] = (byte) data;
                     state = LOOKING_FOR_SECOND_ESC_CHAR;
                 } else {
-                    out.write(data);
+                    processText(data);
                 }
                 break;
 
@@ -100,19 +222,18 @@ class AnsiOutputStream extends FilterOutputStream {
             case LOOKING_FOR_NEXT_ARG:
                 buffer[pos++] = (byte) data;
                 if ('"' == data) {
-                    startOfValue = pos - 1;
                     state = LOOKING_FOR_STR_ARG_END;
                 } else if ('0' <= data && data <= '9') {
-                    startOfValue = pos - 1;
+                    parameterValue = data - '0';
                     state = LOOKING_FOR_INT_ARG_END;
                 } else if (';' == data) {
-                    options.add(null);
+                    addParameter(0, true);
                 } else if ('?' == data) {
-                    options.add('?');
+                    parameterFlags |= FLAG_PRIVATE;
                 } else if ('=' == data) {
-                    options.add('=');
+                    parameterFlags |= FLAG_EQUALS;
                 } else {
-                    reset(processEscapeCommand(options, data));
+                    reset(processEscapeCommand(data));
                 }
                 break;
             default:
@@ -120,35 +241,33 @@ class AnsiOutputStream extends FilterOutputStream {
 
             case LOOKING_FOR_INT_ARG_END:
                 buffer[pos++] = (byte) data;
-                if (!('0' <= data && data <= '9')) {
-                    String strValue = new String(buffer, startOfValue, (pos - 1) - startOfValue, "UTF-8");
-                    Integer value = Integer.valueOf(strValue);
-                    options.add(value);
+                if ('0' <= data && data <= '9') {
+                    parameterValue = Math.min(parameterValue * 10 + (data - '0'), MAX_PARAMETER_VALUE);
+                } else {
+                    addParameter(parameterValue, false);
                     if (data == ';') {
                         state = LOOKING_FOR_NEXT_ARG;
                     } else {
-                        reset(processEscapeCommand(options, data));
+                        reset(processEscapeCommand(data));
                     }
                 }
                 break;
 
             case LOOKING_FOR_STR_ARG_END:
                 buffer[pos++] = (byte) data;
-                if ('"' != data) {
-                    String value = new String(buffer, startOfValue, (pos - 1) - startOfValue, "UTF-8");
-                    options.add(value);
-                    if (data == ';') {
-                        state = LOOKING_FOR_NEXT_ARG;
-                    } else {
-                        reset(processEscapeCommand(options, data));
-                    }
+                if ('"' == data) {
+                    // String arguments are not used by any command we process; keep
+                    // the slot so that parameter indices stay aligned.
+                    parameterFlags |= FLAG_STRING;
+                    parameterValue = 0;
+                    state = LOOKING_FOR_INT_ARG_END;
                 }
                 break;
 
             case LOOKING_FOR_OSC_COMMAND:
                 buffer[pos++] = (byte) data;
                 if ('0' <= data && data <= '9') {
-                    startOfValue = pos - 1;
+                    parameterValue = data - '0';
                     state = LOOKING_FOR_OSC_COMMAND_END;
                 } else {
                     reset(false);
@@ -158,12 +277,12 @@ class AnsiOutputStream extends FilterOutputStream {
             case LOOKING_FOR_OSC_COMMAND_END:
                 buffer[pos++] = (byte) data;
                 if (';' == data) {
-                    String strValue = new String(buffer, startOfValue, (pos - 1) - startOfValue, "UTF-8");
-                    Integer value = Integer.valueOf(strValue);
-                    options.add(value);
+                    addParameter(parameterValue, false);
                     startOfValue = pos;
                     state = LOOKING_FOR_OSC_PARAM;
-                } else if (!('0' <= data && data <= '9')) {
+                } else if ('0' <= data && data <= '9') {
+                    parameterValue = Math.min(parameterValue * 10 + (data - '0'), MAX_PARAMETER_VALUE);
+                } else {
                     // oops, did not expect this
                     reset(false);
                 }
@@ -172,9 +291,8 @@ class AnsiOutputStream extends FilterOutputStream {
             case LOOKING_FOR_OSC_PARAM:
                 buffer[pos++] = (byte) data;
                 if (BEL == data) {
-                    String value = new String(buffer, startOfValue, (pos - 1) - startOfValue, "UTF-8");
-                    options.add(value);
-                    reset(processOperatingSystemCommand(options));
+                    String label = new String(buffer, startOfValue, (pos - 1) - startOfValue, "UTF-8");
+                    reset(processOperatingSystemCommand(label));
                 } else if (FIRST_ESC_CHAR == data) {
                     state = LOOKING_FOR_ST;
                 } /*else {
@@ -185,9 +303,8 @@ class AnsiOutputStream extends FilterOutputStream {
             case LOOKING_FOR_ST:
                 buffer[pos++] = (byte) data;
                 if (SECOND_ST_CHAR == data) {
-                    String value = new String(buffer, startOfValue, (pos - 2) - startOfValue, "UTF-8");
-                    options.add(value);
-                    reset(processOperatingSystemCommand(options));
+                    String label = new String(buffer, startOfValue, (pos - 2) - startOfValue, "UTF-8");
+                    reset(processOperatingSystemCommand(label));
                 } else {
                     state = LOOKING_FOR_OSC_PARAM;
                 }
@@ -200,11 +317,24 @@ class AnsiOutputStream extends FilterOutputStream {
         }
     }
 
+    /* Number of escape sequences recognized and processed */
+    private long escapeSequences = 0;
+
+    /**
+     * @return the number of escape sequences processed so far
+     */
+    long getEscapeSequenceCount() {
+        return escapeSequences;
+    }
+
     /**
      * Resets all state to continue with regular parsing
      * @param skipBuffer if current buffer should be skipped or written to out
      */
     private void reset(boolean skipBuffer) /*throws IOException*/ {
+        if (skipBuffer) {
+            escapeSequences++;
+        }
         /*
         FIXME!
         if (!skipBuffer) {
@@ -214,63 +344,76 @@ class AnsiOutputStream extends FilterOutputStream {
         */
         pos = 0;
         startOfValue = 0;
-        options.clear();
+        parameterCount = 0;
+        defaultParameters = 0;
+        parameterFlags = 0;
+        parameterValue = 0;
         state = LOOKING_FOR_FIRST_ESC_CHAR;
     }
 
-    private boolean processEscapeCommand(ArrayList<Object> options, int command) throws IOException {
+    private void addParameter(int value, boolean isDefault) {
+        if (parameterCount == MAX_PARAMETERS) {
+            parameterFlags |= FLAG_OVERFLOW;
+            return;
+        }
+        if (isDefault) {
+            defaultParameters |= 1 << parameterCount;
+        }
+        parameters[parameterCount++] = value;
+    }
+
+    private boolean processEscapeCommand(int command) throws IOException {
+        if (parameterFlags != 0) {
+            // Private (DEC) sequences, string arguments and other oddities are not
+            // standard commands.
+            return (parameterFlags & (FLAG_PRIVATE | FLAG_EQUALS)) != 0 &&
+                    processExtension(command);
+        }
         try {
             switch (command) {
                 case 'A':
-                    processCursorUp(optionInt(options, 0, 1));
+                    processCursorUp(optionInt(0, 1));
                     return true;
                 case 'B':
-                    processCursorDown(optionInt(options, 0, 1));
+                    processCursorDown(optionInt(0, 1));
                     return true;
                 case 'C':
-                    processCursorRight(optionInt(options, 0, 1));
+                    processCursorRight(optionInt(0, 1));
                     return true;
                 case 'D':
-                    processCursorLeft(optionInt(options, 0, 1));
+                    processCursorLeft(optionInt(0, 1));
                     return true;
                 case 'E':
-                    processCursorDownLine(optionInt(options, 0, 1));
+                    processCursorDownLine(optionInt(0, 1));
                     return true;
                 case 'F':
-                    processCursorUpLine(optionInt(options, 0, 1));
+                    processCursorUpLine(optionInt(0, 1));
                     return true;
                 case 'G':
-                    processCursorToColumn(optionInt(options, 0));
+                    processCursorToColumn(optionInt(0));
                     return true;
                 case 'H':
                 case 'f':
-                    processCursorTo(optionInt(options, 0, 1), optionInt(options, 1, 1));
+                    processCursorTo(optionInt(0, 1), optionInt(1, 1));
                     return true;
                 case 'J':
-                    processEraseScreen(optionInt(options, 0, 0));
+                    processEraseScreen(optionInt(0, 0));
                     return true;
                 case 'K':
-                    processEraseLine(optionInt(options, 0, 0));
+                    processEraseLine(optionInt(0, 0));
                     return true;
                 case 'S':
-                    processScrollUp(optionInt(options, 0, 1));
+                    processScrollUp(optionInt(0, 1));
                     return true;
                 case 'T':
-                    processScrollDown(optionInt(options, 0, 1));
+                    processScrollDown(optionInt(0, 1));
                     return true;
                 case 'm':
-                    // Validate all options are ints...
-                    for (Object next : options) {
-                        if (next != null && next.getClass() != Integer.class) {
-                            throw new IllegalArgumentException();
-                        }
-                    }
-
                     int count = 0;
-                    for (Object next : options) {
-                        if (next != null) {
+                    for (int i = 0; i < parameterCount; i++) {
+                        if ((defaultParameters & (1 << i)) == 0) {
                             count++;
-                            int value = ((Integer) next);
+                            int value = parameters[i];
                             if (30 <= value && value <= 37) {
                                 processSetForegroundColor(value - 30);
                             } else if (40 <= value && value <= 47) {
@@ -279,6 +422,28 @@ class AnsiOutputStream extends FilterOutputStream {
                                 processSetForegroundColor(value - 90, true);
                             } else if (100 <= value && value <= 107) {
                                 processSetBackgroundColor(value - 100, true);
+                            } else if ((value == 38 || value == 48) && i + 2 < parameterCount &&
+                                    parameters[i + 1] == 5) {
+                                // 38;5;n or 48;5;n: 256-color palette
+                                int index = Math.min(parameters[i + 2], 255);
+                                if (value == 38) {
+                                    processSetForegroundColorExt(index);
+                                } else {
+                                    processSetBackgroundColorExt(index);
+                                }
+                                i += 2;
+                            } else if ((value == 38 || value == 48) && i + 4 < parameterCount &&
+                                    parameters[i + 1] == 2) {
+                                // 38;2;r;g;b or 48;2;r;g;b: 24-bit color
+                                int r = Math.min(parameters[i + 2], 255);
+                                int g = Math.min(parameters[i + 3], 255);
+                                int b = Math.min(parameters[i + 4], 255);
+                                if (value == 38) {
+                                    processSetForegroundColorExt(r, g, b);
+                                } else {
+                                    processSetBackgroundColorExt(r, g, b);
+                                }
+                                i += 4;
                             } else {
                                 switch (value) {
                                     case 39:
@@ -308,24 +473,27 @@ class AnsiOutputStream extends FilterOutputStream {
                     return true;
 
                 default:
-                    if ('a' <= command && 'z' <= command) {
-                        processUnknownExtension(options, command);
-                        return true;
-                    }
-                    if ('A' <= command && 'Z' <= command) {
-                        processUnknownExtension(options, command);
-                        return true;
-                    }
-                    return false;
+                    return processExtension(command);
             }
         } catch (IllegalArgumentException ignore) {
         }
         return false;
     }
 
-    private boolean processOperatingSystemCommand(ArrayList<Object> options) {
-        int command = optionInt(options, 0);
-        String label = (String) options.get(1);
+    private boolean processExtension(int command) {
+        if ('a' <= command && 'z' <= command) {
+            processUnknownExtension(parameters, parameterCount, command);
+            return true;
+        }
+        if ('A' <= command && 'Z' <= command) {
+            processUnknownExtension(parameters, parameterCount, command);
+            return true;
+        }
+        return false;
+    }
+
+    private boolean processOperatingSystemCommand(String label) {
+        int command = parameters[0];
         // for command > 2 label could be composed (i.e. contain ';'), but we'll leave
         // it to processUnknownOperatingSystemCommand implementations to handle that
         try {
@@ -350,6 +518,38 @@ class AnsiOutputStream extends FilterOutputStream {
         return false;
     }
 
+    /**
+     * Called with a single byte of plain text (i.e. not part of an escape sequence).
+     * @param data the byte to output
+     */
+    protected void processText(int data) throws IOException {
+        out.write(data);
+    }
+
+    /**
+     * Called with a run of plain text containing no escape sequences.  Subclasses that
+     * override {@link #processText(int)} must override this as well.
+     * @param b the data
+     * @param off the start offset in the data
+     * @param len the number of bytes to write
+     */
+    protected void processText(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+    }
+
+    /**
+     * Called with a run of plain text from one of the character write methods.  By default
+     * the text is encoded to UTF-8 and written to the underlying stream; subclasses that
+     * consume characters directly should override this.
+     * @param c the data
+     * @param off the start offset in the data
+     * @param len the number of characters to write
+     */
+    protected void processText(char[] c, int off, int len) throws IOException {
+        byte[] bytes = new String(c, off, len).getBytes(UTF8);
+        processText(bytes, 0, bytes.length);
+    }
+
     protected void processRestoreCursorPosition() throws IOException {
     }
 
@@ -365,6 +565,7 @@ class AnsiOutputStream extends FilterOutputStream {
     static final int ERASE_SCREEN_TO_END = 0;
     static final int ERASE_SCREEN_TO_BEGINING = 1;
     static final int ERASE_SCREEN = 2;
+    static final int ERASE_SCROLLBACK = 3;
 
     protected void processEraseScreen(int eraseOption) throws IOException {
     }
@@ -384,12 +585,15 @@ class AnsiOutputStream extends FilterOutputStream {
     static final int ATTRIBUTE_BLINK_FAST = 6; // 	Blink; Rapid 	MS-DOS ANSI.SYS; 150 per minute or more
     static final int ATTRIBUTE_NEGATIVE_ON = 7; // 	Image; Negative 	inverse or reverse; swap foreground and background
     static final int ATTRIBUTE_CONCEAL_ON = 8; // 	Conceal on
+    static final int ATTRIBUTE_STRIKETHROUGH = 9; // 	Crossed-out
     static final int ATTRIBUTE_UNDERLINE_DOUBLE = 21; // 	Underline; Double 	not widely supported
     static final int ATTRIBUTE_INTENSITY_NORMAL = 22; // 	Intensity; Normal 	not bold and not faint
+    static final int ATTRIBUTE_ITALIC_OFF = 23; // 	Not italic
     static final int ATTRIBUTE_UNDERLINE_OFF = 24; // 	Underline; None
     static final int ATTRIBUTE_BLINK_OFF = 25; // 	Blink; off
     static final int ATTRIBUTE_NEGATIVE_Off = 27; // 	Image; Positive
     static final int ATTRIBUTE_CONCEAL_OFF = 28; // 	Reveal 	conceal off
+    static final int ATTRIBUTE_STRIKETHROUGH_OFF = 29; // 	Not crossed out
 
     protected void processSetAttribute(int attribute) throws IOException {
     }
@@ -417,6 +621,24 @@ class AnsiOutputStream extends FilterOutputStream {
     protected void processSetBackgroundColor(int color, boolean bright) throws IOException {
     }
 
+    /**
+     * @param paletteIndex an index into the xterm 256-color palette, 0 - 255
+     */
+    protected void processSetForegroundColorExt(int paletteIndex) throws IOException {
+    }
+
+    protected void processSetForegroundColorExt(int r, int g, int b) throws IOException {
+    }
+
+    /**
+     * @param paletteIndex an index into the xterm 256-color palette, 0 - 255
+     */
+    protected void processSetBackgroundColorExt(int paletteIndex) throws IOException {
+    }
+
+    protected void processSetBackgroundColorExt(int r, int g, int b) throws IOException {
+    }
+
     protected void processDefaultTextColor() {
     }
 
@@ -458,7 +680,14 @@ class AnsiOutputStream extends FilterOutputStream {
     protected void processCursorUp(int count) throws IOException {
     }
 
-    protected void processUnknownExtension(ArrayList<Object> options, int command) {
+    /**
+     * Called for commands that have no dedicated process method, including private
+     * (ESC[?...) sequences.
+     * @param parameters the numeric parameters of the sequence (omitted ones are 0)
+     * @param count the number of valid entries in 'parameters'
+     * @param command the final character of the sequence
+     */
+    protected void processUnknownExtension(int[] parameters, int count, int command) {
     }
 
     protected void processChangeIconNameAndWindowTitle(String label) {
@@ -475,24 +704,17 @@ class AnsiOutputStream extends FilterOutputStream {
     protected void processUnknownOperatingSystemCommand(int command, String param) {
     }
 
-    private int optionInt(ArrayList<Object> options, int index) {
-        if (options.size() <= index)
-            throw new IllegalArgumentException();
-        Object value = options.get(index);
-        if (value == null)
+    private int optionInt(int index) {
+        if (parameterCount <= index)
             throw new IllegalArgumentException();
-        if (!value.getClass().equals(Integer.class))
+        if ((defaultParameters & (1 << index)) != 0)
             throw new IllegalArgumentException();
-        return ((Integer) value);
+        return parameters[index];
     }
 
-    private int optionInt(ArrayList<Object> options, int index, int defaultValue) {
-        if (options.size() > index) {
-            Object value = options.get(index);
-            if (value == null) {
-                return defaultValue;
-            }
-            return ((Integer) value);
+    private int optionInt(int index, int defaultValue) {
+        if (parameterCount > index && (defaultParameters & (1 << index)) == 0) {
+            return parameters[index];
         }
         return defaultValue;
     }
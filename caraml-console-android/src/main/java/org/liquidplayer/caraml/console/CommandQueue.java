@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2019 Eric Lange
+ *
+ * Distributed under the MIT License.  See LICENSE.md at
+ * https://github.com/LiquidPlayer/caraml-console for terms and conditions.
+ */
+package org.liquidplayer.caraml.console;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Commands typed into a console, evaluated one at a time in the order they were entered.
+ * Only one evaluation is ever scheduled on the JavaScript thread, so a burst of commands
+ * neither creates threads nor has its results interleaved.
+ *
+ * A command that has waited longer than the timeout before its turn comes is dropped rather
+ * than evaluated.  A command that is already running cannot be stopped.
+ */
+final class CommandQueue {
+    /**
+     * Runs tasks on the JavaScript thread, i.e. JSContextGroup.schedule().
+     */
+    interface Scheduler {
+        void schedule(Runnable task);
+    }
+
+    /**
+     * Called on the JavaScript thread.
+     */
+    interface Evaluator {
+        void evaluate(String command);
+        void onTimeout(String command);
+    }
+
+    /**
+     * Told whenever the number of commands waiting or running changes, on whichever thread
+     * made the change.
+     */
+    interface Listener {
+        void onCommandsPending(int count);
+    }
+
+    CommandQueue(Scheduler scheduler, Evaluator evaluator) {
+        this.scheduler = scheduler;
+        this.evaluator = evaluator;
+    }
+
+    private static final class Command {
+        Command(String text, long queuedAt) {
+            this.text = text;
+            this.queuedAt = queuedAt;
+        }
+
+        final String text;
+        final long queuedAt;
+    }
+
+    private final Scheduler scheduler;
+    private final Evaluator evaluator;
+    private volatile Listener listener = null;
+
+    private volatile long timeoutNanos = 0;
+
+    /* Guarded by 'this' */
+    private final ArrayDeque<Command> commands = new ArrayDeque<>();
+    /* Whether 'next' is scheduled or running */
+    private boolean running = false;
+    /* Whether a command has been taken off 'commands' and is being evaluated */
+    private boolean evaluating = false;
+
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @param millis how long a command may wait for its turn, or 0 to wait forever
+     */
+    void setTimeout(long millis) {
+        timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis));
+    }
+
+    /**
+     * Queues a command to be evaluated after those already queued.
+     */
+    void submit(String command) {
+        boolean start;
+        int count;
+        synchronized (this) {
+            commands.add(new Command(command, System.nanoTime()));
+            start = !running;
+            running = true;
+            count = pending();
+        }
+        if (start) {
+            scheduler.schedule(next);
+        }
+        notifyPending(count);
+    }
+
+    /**
+     * Drops every command that has not started yet.
+     * @return the number of commands dropped
+     */
+    int cancel() {
+        int cancelled;
+        int count;
+        synchronized (this) {
+            cancelled = commands.size();
+            commands.clear();
+            count = pending();
+        }
+        if (cancelled > 0) {
+            notifyPending(count);
+        }
+        return cancelled;
+    }
+
+    /**
+     * @return the number of commands waiting or running
+     */
+    synchronized int getPending() {
+        return pending();
+    }
+
+    private int pending() {
+        return commands.size() + (evaluating ? 1 : 0);
+    }
+
+    private final Runnable next = new Runnable() {
+        @Override
+        public void run() {
+            Command command;
+            synchronized (CommandQueue.this) {
+                command = commands.poll();
+                if (command == null) {
+                    running = false;
+                    return;
+                }
+                evaluating = true;
+            }
+            try {
+                if (timeoutNanos > 0 && System.nanoTime() - command.queuedAt > timeoutNanos) {
+                    evaluator.onTimeout(command.text);
+                } else {
+                    evaluator.evaluate(command.text);
+                }
+            } finally {
+                boolean more;
+                int count;
+                synchronized (CommandQueue.this) {
+                    evaluating = false;
+                    more = running = !commands.isEmpty();
+                    count = pending();
+                }
+                notifyPending(count);
+                // one command per task, so that other work scheduled on the thread gets a turn
+                if (more) {
+                    scheduler.schedule(next);
+                }
+            }
+        }
+    };
+
+    private void notifyPending(int count) {
+        Listener l = listener;
+        if (l != null) {
+            l.onCommandsPending(count);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2019 Eric Lange
+ *
+ * Distributed under the MIT License.  See LICENSE.md at
+ * https://github.com/LiquidPlayer/caraml-console for terms and conditions.
+ */
+package org.liquidplayer.caraml.console;
+
+/**
+ * A view that renders a ConsoleTerminal.  AnsiConsoleTextView lays the whole history out as
+ * one block of text; ConsoleLinesView only draws the lines that are on screen.
+ */
+interface ConsoleDisplay {
+
+    interface Listener {
+        void onDisplayUpdated();
+    }
+
+    void addListener(Listener listener);
+
+    void removeListener(Listener listener);
+
+    /**
+     * Starts rendering 'terminal'.  Must be called before anything is printed to it.
+     */
+    void setTerminal(ConsoleTerminal terminal);
+
+    /**
+     * @param size the text size in scaled pixels
+     */
+    void setTextSize(float size);
+
+    void setTextColor(int color);
+
+    /**
+     * Sets the colors used where a rendition needs to know the default colors, i.e. for
+     * negative (inverse) and concealed text.
+     */
+    void setDefaultColors(int foreground, int background);
+
+    /**
+     * Limits how often the display is refreshed.
+     * @param fps the most refreshes per second, or 0 for every display frame
+     */
+    void setMaxFramesPerSecond(int fps);
+
+    /**
+     * @return the width of one character cell, in pixels
+     */
+    int getColumnWidth();
+
+    /**
+     * @return the height of one line, in pixels
+     */
+    int getLineHeight();
+
+    /**
+     * @return the width available for text, in pixels
+     */
+    int getContentWidth();
+
+    /**
+     * @param line a line of history, 0 being the oldest kept
+     * @return the offset of the top of that line from the top of the view, in pixels
+     */
+    int getLineTop(int line);
+
+    /**
+     * @return everything displayed, for saving
+     */
+    CharSequence getDisplayText();
+
+    /**
+     * Replaces everything displayed with previously saved text.
+     */
+    void setDisplayText(CharSequence text);
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2019 Eric Lange
+ *
+ * Distributed under the MIT License.  See LICENSE.md at
+ * https://github.com/LiquidPlayer/caraml-console for terms and conditions.
+ */
+package org.liquidplayer.caraml.console;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads that parse console output, shared by every console session.  There are only
+ * ever a few of them, however many consoles exist; idle threads wait for work and exit after
+ * KEEP_ALIVE_SECONDS.  Each session submits at most one task at a time (see ConsoleTerminal),
+ * which keeps its output in order.
+ */
+final class ConsoleExecutor {
+    private ConsoleExecutor() {
+    }
+
+    private static final int MAX_THREADS =
+            Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors() - 1));
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final ThreadFactory threadFactory = new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "console-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_THREADS,
+            MAX_THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), threadFactory);
+    static {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    static Executor get() {
+        return executor;
+    }
+}
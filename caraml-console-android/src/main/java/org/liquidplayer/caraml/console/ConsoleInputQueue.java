@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2019 Eric Lange
+ *
+ * Distributed under the MIT License.  See LICENSE.md at
+ * https://github.com/LiquidPlayer/caraml-console for terms and conditions.
+ */
+package org.liquidplayer.caraml.console;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands output from any number of writing threads to the one consumer that parses it.
+ * Writers never block (unless the queue is full, see setOverflowPolicy()): offer() is a
+ * lock-free enqueue.  The consumer, run as a task whenever there is output, drains everything
+ * queued so far into one reusable buffer with poll().  Only one thread at a time may consume.
+ *
+ * The amount of output waiting to be parsed can be capped, see setOverflowPolicy().  Sizes are
+ * measured in chars, which for console output is close enough to bytes.
+ */
+final class ConsoleInputQueue {
+    /* Stop draining once a batch is this large so the parser holds its lock for a bounded time */
+    private static final int MAX_BATCH = 64 * 1024;
+
+    /**
+     * What offer() does with output that would take the queue over its limit.
+     */
+    enum OverflowPolicy {
+        /** Wait for the parser to catch up */
+        BLOCK,
+        /** Discard the oldest queued output to make room */
+        DROP_OLDEST,
+        /** Discard the new output */
+        DROP_NEWEST,
+        /** Discard the new output, and later print a marker saying how much was skipped */
+        COLLAPSE,
+    }
+
+    private final ConcurrentLinkedQueue<String> chunks = new ConcurrentLinkedQueue<>();
+    private char[] buffer = new char[8 * 1024];
+
+    private volatile int maxPending = 0;
+    private volatile OverflowPolicy policy = OverflowPolicy.BLOCK;
+    /* Chars queued and not yet taken */
+    private final AtomicLong pending = new AtomicLong(0);
+    /* Chars discarded since the last takeDropped() */
+    private final AtomicLong dropped = new AtomicLong(0);
+    /* Chars discarded under COLLAPSE that have not been reported by a marker yet */
+    private final AtomicLong skipped = new AtomicLong(0);
+    /* Writers waiting under BLOCK wait on this */
+    private final Object space = new Object();
+    private volatile int blockedWriters = 0;
+
+    /**
+     * Caps how much output may wait to be parsed.
+     * @param maxPending the cap in chars, or 0 for no cap
+     * @param policy what to do with output that would exceed the cap
+     */
+    void setOverflowPolicy(int maxPending, OverflowPolicy policy) {
+        this.policy = policy;
+        this.maxPending = Math.max(0, maxPending);
+        synchronized (space) {
+            space.notifyAll();
+        }
+    }
+
+    /**
+     * Queues a chunk of output.  May be called from any thread.  Only blocks if the queue is
+     * full and the policy is BLOCK.
+     * @return true if the chunk was queued, false if it was dropped
+     */
+    boolean offer(String chunk) {
+        final int size = chunk.length();
+        if (size == 0) return true;
+        final int max = maxPending;
+        // under every policy, a chunk bigger than the cap is let through if the queue is empty
+        if (max > 0 && pending.get() > 0 && pending.get() + size > max) {
+            switch (policy) {
+                case BLOCK:
+                    awaitSpace(size);
+                    break;
+                case DROP_OLDEST: {
+                    String oldest;
+                    while (pending.get() + size > max && (oldest = chunks.poll()) != null) {
+                        pending.addAndGet(-oldest.length());
+                        dropped.addAndGet(oldest.length());
+                    }
+                    break;
+                }
+                case DROP_NEWEST:
+                    dropped.addAndGet(size);
+                    return false;
+                case COLLAPSE:
+                    dropped.addAndGet(size);
+                    skipped.addAndGet(size);
+                    return false;
+            }
+        }
+        pending.addAndGet(size);
+        chunks.offer(chunk);
+        return true;
+    }
+
+    /**
+     * Queues a chunk of output whatever the cap, without ever blocking.  For output that must
+     * not be lost or wait, e.g. echoing what the user typed on the main thread.
+     */
+    void put(String chunk) {
+        if (chunk.isEmpty()) return;
+        pending.addAndGet(chunk.length());
+        chunks.offer(chunk);
+    }
+
+    private void awaitSpace(int size) {
+        synchronized (space) {
+            blockedWriters++;
+            try {
+                // a chunk bigger than the cap is let through once the queue is empty
+                while (maxPending > 0 && policy == OverflowPolicy.BLOCK && pending.get() > 0 &&
+                        pending.get() + size > maxPending) {
+                    space.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                blockedWriters--;
+            }
+        }
+    }
+
+    /**
+     * @return the amount of output queued and not yet taken
+     */
+    long getPending() {
+        return pending.get();
+    }
+
+    /**
+     * @return the number of chars discarded since the last call
+     */
+    long takeDropped() {
+        return dropped.getAndSet(0);
+    }
+
+    /**
+     * Discards all queued output, e.g. when nothing will ever display it.  May be called from
+     * any thread.
+     */
+    void clear() {
+        String chunk;
+        while ((chunk = chunks.poll()) != null) {
+            pending.addAndGet(-chunk.length());
+        }
+        skipped.set(0);
+        synchronized (space) {
+            space.notifyAll();
+        }
+    }
+
+    /**
+     * @return true if there is no output, nor a marker for skipped output, waiting to be taken
+     */
+    boolean isEmpty() {
+        return chunks.isEmpty() && skipped.get() == 0;
+    }
+
+    /**
+     * Copies as much output as is queued (up to a batch limit) into buffer().  Must only be
+     * called by the consumer.
+     * @return the number of chars in buffer(); 0 if there was no output
+     */
+    int poll() {
+        int length = 0;
+        String chunk;
+        while (length < MAX_BATCH && (chunk = chunks.poll()) != null) {
+            length = append(chunk, length);
+        }
+        pending.addAndGet(-length);
+
+        // output collapsed after the last chunk was queued still gets its marker
+        long skippedChars = skipped.getAndSet(0);
+        if (skippedChars > 0) {
+            length = append("[" + skippedChars + " bytes skipped]\n", length);
+        }
+        if (blockedWriters > 0) {
+            synchronized (space) {
+                space.notifyAll();
+            }
+        }
+        return length;
+    }
+
+    private int append(String chunk, int length) {
+        int size = chunk.length();
+        if (length + size > buffer.length) {
+            char[] grown = new char[Math.max(buffer.length * 2, length + size)];
+            System.arraycopy(buffer, 0, grown, 0, length);
+            buffer = grown;
+        }
+        chunk.getChars(0, size, buffer, length);
+        return length + size;
+    }
+
+    /**
+     * @return the buffer filled by the last poll()
+     */
+    char[] buffer() {
+        return buffer;
+    }
+}
@@ -10,6 +10,8 @@ import android.content.Context;
 import android.graphics.Color;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
 import android.view.View;
 
 import org.liquidplayer.caraml.CaramlJS;
@@ -21,6 +23,7 @@ import org.liquidplayer.javascript.JSObject;
 import org.liquidplayer.javascript.JSPromise;
 import org.liquidplayer.javascript.JSValue;
 
+import java.io.File;
 import java.util.HashMap;
 import java.util.UUID;
 
@@ -36,6 +39,26 @@ public class ConsoleJS extends JSObject implements CaramlSurface, JSContext.IJSE
         attachPromise = null;
         detachPromise = null;
 
+        commands = new CommandQueue(new CommandQueue.Scheduler() {
+            @Override
+            public void schedule(Runnable task) {
+                context.getGroup().schedule(task);
+            }
+        }, evaluator);
+        commands.setListener(new CommandQueue.Listener() {
+            @Override
+            public void onCommandsPending(final int count) {
+                new Handler(Looper.getMainLooper()).post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (currentView != null) {
+                            currentView.setCommandsPending(count);
+                        }
+                    }
+                });
+            }
+        });
+
         uuid = UUID.randomUUID().toString();
         sessionMap.put(uuid, this);
 
@@ -43,6 +66,12 @@ public class ConsoleJS extends JSObject implements CaramlSurface, JSContext.IJSE
         this.backgroundColor = Color.BLACK;
         this.textColor = Color.GREEN;
         this.fontSize = 12.0f;
+        this.maxScrollbackLines = ConsoleOutputStream.DEFAULT_MAX_SCROLLBACK_LINES;
+        this.hotScrollbackLines = 0;
+        this.maxFramesPerSecond = 0;
+        this.virtualized = false;
+        this.maxPendingBytes = 0;
+        this.overflowPolicy = ConsoleInputQueue.OverflowPolicy.BLOCK;
 
         if (opts != null && opts.isObject()) {
             JSObject options = opts.toObject();
@@ -56,6 +85,38 @@ public class ConsoleJS extends JSObject implements CaramlSurface, JSContext.IJSE
             if (fontSize.isNumber()) {
                 this.fontSize = fontSize.toNumber().floatValue();
             }
+            JSValue maxScrollbackLines = options.property("maxScrollbackLines");
+            if (maxScrollbackLines.isNumber()) {
+                this.maxScrollbackLines = Math.max(0, maxScrollbackLines.toNumber().intValue());
+            }
+            JSValue hotScrollbackLines = options.property("hotScrollbackLines");
+            if (hotScrollbackLines.isNumber()) {
+                this.hotScrollbackLines = Math.max(0, hotScrollbackLines.toNumber().intValue());
+            }
+            JSValue maxFramesPerSecond = options.property("maxFramesPerSecond");
+            if (maxFramesPerSecond.isNumber()) {
+                this.maxFramesPerSecond = Math.max(0, maxFramesPerSecond.toNumber().intValue());
+            }
+            JSValue virtualized = options.property("virtualized");
+            if (virtualized.isBoolean()) {
+                this.virtualized = virtualized.toBoolean();
+            }
+            JSValue maxPendingBytes = options.property("maxPendingBytes");
+            if (maxPendingBytes.isNumber()) {
+                this.maxPendingBytes = Math.max(0, maxPendingBytes.toNumber().intValue());
+            }
+            JSValue overflowPolicy = options.property("overflowPolicy");
+            if (overflowPolicy.isString()) {
+                this.overflowPolicy = parseOverflowPolicy(overflowPolicy.toString());
+            }
+            JSValue commandTimeout = options.property("commandTimeout");
+            if (commandTimeout.isNumber()) {
+                commands.setTimeout(commandTimeout.toNumber().longValue());
+            }
+            JSValue logFile = options.property("logFile");
+            if (logFile.isString()) {
+                this.log = newLog(androidContext, logFile.toString(), options);
+            }
         }
 
         new Handler(Looper.getMainLooper()).post(new Runnable() {
@@ -74,6 +135,26 @@ public class ConsoleJS extends JSObject implements CaramlSurface, JSContext.IJSE
         });
     }
 
+    private static ConsoleLog newLog(Context androidContext, String name, JSObject options) {
+        File file = new File(name);
+        if (!file.isAbsolute()) {
+            file = new File(new File(androidContext.getFilesDir(), LOG_DIRECTORY), name);
+        }
+        long maxBytes = ConsoleLog.DEFAULT_MAX_BYTES;
+        JSValue logMaxBytes = options.property("logMaxBytes");
+        if (logMaxBytes.isNumber()) {
+            maxBytes = Math.max(1, logMaxBytes.toNumber().longValue());
+        }
+        int maxFiles = ConsoleLog.DEFAULT_MAX_FILES;
+        JSValue logMaxFiles = options.property("logMaxFiles");
+        if (logMaxFiles.isNumber()) {
+            maxFiles = Math.max(1, logMaxFiles.toNumber().intValue());
+        }
+        JSValue logStripAnsi = options.property("logStripAnsi");
+        boolean stripAnsi = logStripAnsi.isBoolean() && logStripAnsi.toBoolean();
+        return new ConsoleLog(file, maxBytes, maxFiles, stripAnsi);
+    }
+
     /*--
     /* JavaScript API
     /*--*/
@@ -130,7 +211,130 @@ public class ConsoleJS extends JSObject implements CaramlSurface, JSContext.IJSE
 
     @jsexport @SuppressWarnings("unused")
     void write(String out) {
-        if (currentView != null && out != null) currentView.print(out);
+        boolean trace = ConsoleTracing.isEnabled();
+        if (trace) ConsoleTracing.begin(ConsoleTracing.SECTION_WRITE);
+        try {
+            if (currentView != null && out != null) {
+                currentView.print(out);
+                onOverflow();
+            }
+        } finally {
+            if (trace) ConsoleTracing.end(ConsoleTracing.SECTION_WRITE);
+        }
+    }
+
+    /**
+     * Drops the commands entered in the console that have not started to run yet.
+     * @return the number of commands dropped
+     */
+    @jsexport @SuppressWarnings("unused")
+    int cancelCommands() {
+        return commands.cancel();
+    }
+
+    /**
+     * @return the number of commands entered in the console that are waiting or running
+     */
+    @jsexport @SuppressWarnings("unused")
+    int pendingCommands() {
+        return commands.getPending();
+    }
+
+    /**
+     * @return the console's stats, see ConsoleStats, or undefined if it has no view
+     */
+    @jsexport @SuppressWarnings("unused")
+    JSValue stats() {
+        if (currentView == null) {
+            return new JSValue(getContext());
+        }
+        ConsoleStats stats = currentView.getStats();
+        JSObject object = new JSObject(getContext());
+        object.property("bytesParsed", stats.bytesParsed);
+        object.property("escapeSequences", stats.escapeSequences);
+        object.property("pendingBytes", stats.pendingBytes);
+        object.property("parseMillis", stats.parseNanos / 1e6);
+        object.property("flushMillis", stats.flushNanos / 1e6);
+        object.property("renderMillis", stats.renderNanos / 1e6);
+        object.property("renders", stats.renders);
+        JSObject histogram = new JSObject(getContext());
+        for (int i = 0; i < stats.latencyHistogram.length; i++) {
+            histogram.property(i < ConsoleStats.LATENCY_BOUNDS.length ?
+                    Long.toString(ConsoleStats.LATENCY_BOUNDS[i]) : "Infinity",
+                    stats.latencyHistogram[i]);
+        }
+        object.property("latencyHistogram", histogram);
+        object.property("latencyP50", latencyPercentile(stats, 50));
+        object.property("latencyP99", latencyPercentile(stats, 99));
+        return object;
+    }
+
+    private static double latencyPercentile(ConsoleStats stats, double percentile) {
+        long millis = stats.latencyPercentile(percentile);
+        return millis < 0 ? Double.POSITIVE_INFINITY : millis;
+    }
+
+    /*
+     * Reports output lost to the pending output limit, if any.  A flood overflows on every
+     * write, so this is reported at most once per OVERFLOW_REPORT_INTERVAL, along with everything
+     * dropped since the last report.  Anything dropped within the interval is reported once it
+     * is up, whether or not anything else is written.  Output that was only delayed under
+     * 'block' is not reported.
+     */
+    private void onOverflow() {
+        if (maxPendingBytes == 0 || overflowPolicy == ConsoleInputQueue.OverflowPolicy.BLOCK) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        if (now - lastOverflowReport >= OVERFLOW_REPORT_INTERVAL) {
+            reportOverflow(now);
+        } else if (!overflowReportScheduled) {
+            overflowReportScheduled = true;
+            new Handler(Looper.getMainLooper()).postAtTime(new Runnable() {
+                @Override
+                public void run() {
+                    getContext().getGroup().schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            overflowReportScheduled = false;
+                            if (currentView != null) {
+                                reportOverflow(SystemClock.uptimeMillis());
+                            }
+                        }
+                    });
+                }
+            }, lastOverflowReport + OVERFLOW_REPORT_INTERVAL);
+        }
+    }
+
+    private void reportOverflow(long now) {
+        long dropped = currentView.takeDroppedBytes();
+        if (dropped > 0) {
+            lastOverflowReport = now;
+            emit.call(this, "overflow", overflowPolicyName(overflowPolicy), dropped);
+        }
+    }
+
+    /* Unknown names fall back to the default, 'block', rather than failing newConsole() */
+    private static ConsoleInputQueue.OverflowPolicy parseOverflowPolicy(String policy) {
+        switch (policy) {
+            case "dropOldest": return ConsoleInputQueue.OverflowPolicy.DROP_OLDEST;
+            case "dropNewest": return ConsoleInputQueue.OverflowPolicy.DROP_NEWEST;
+            case "collapse":   return ConsoleInputQueue.OverflowPolicy.COLLAPSE;
+            case "block":      return ConsoleInputQueue.OverflowPolicy.BLOCK;
+        }
+        Log.w("ConsoleJS", "newConsole: unknown overflowPolicy '" + policy +
+                "', using 'block'");
+        return ConsoleInputQueue.OverflowPolicy.BLOCK;
+    }
+
+    private static String overflowPolicyName(ConsoleInputQueue.OverflowPolicy policy) {
+        switch (policy) {
+            case DROP_OLDEST: return "dropOldest";
+            case DROP_NEWEST: return "dropNewest";
+            case COLLAPSE:    return "collapse";
+            default:          return "block";
+        }
     }
 
     /*--
@@ -174,8 +378,10 @@ public class ConsoleJS extends JSObject implements CaramlSurface, JSContext.IJSE
             sessionMap.remove(uuid);
         }
 
+        // the view's terminal closes the log once the output printed so far is in it
         if (currentView != null) currentView.detach();
         caramlJS = null;
+        commands.cancel();
 
         emit.call(this, "detached");
         if (detachPromise != null) {
@@ -226,23 +432,61 @@ public class ConsoleJS extends JSObject implements CaramlSurface, JSContext.IJSE
         return fontSize;
     }
 
+    int getMaxScrollbackLines() {
+        return maxScrollbackLines;
+    }
+
+    int getHotScrollbackLines() {
+        return hotScrollbackLines;
+    }
+
+    int getMaxFramesPerSecond() {
+        return maxFramesPerSecond;
+    }
+
+    boolean isVirtualized() {
+        return virtualized;
+    }
+
+    int getMaxPendingBytes() {
+        return maxPendingBytes;
+    }
+
+    ConsoleInputQueue.OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    ConsoleLog getLog() {
+        return log;
+    }
+
     void removeCurrentView(ConsoleSurface view) {
         if (currentView == view) currentView = null;
     }
 
     void processCommand(final String cmd) {
-        processedException = false;
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                JSValue output = getContext().evaluateScript(cmd);
-                if (!processedException && console_log != null) {
-                    console_log.call(null, output);
-                }
-            }
-        }).start();
+        commands.submit(cmd);
     }
 
+    /* Runs on the JavaScript thread, one command at a time */
+    private final CommandQueue.Evaluator evaluator = new CommandQueue.Evaluator() {
+        @Override
+        public void evaluate(String command) {
+            processedException = false;
+            JSValue output = getContext().evaluateScript(command);
+            if (!processedException && console_log != null) {
+                console_log.call(null, output);
+            }
+        }
+
+        @Override
+        public void onTimeout(String command) {
+            if (currentView != null) {
+                currentView.println("\u001b[33mTimed out waiting to run: " + command);
+            }
+        }
+    };
+
     void resize(final int columns, final int rows) {
         getContext().getGroup().schedule(new Runnable() {
             @Override
@@ -269,6 +513,9 @@ public class ConsoleJS extends JSObject implements CaramlSurface, JSContext.IJSE
     /*--*/
 
     private static HashMap<String,ConsoleJS> sessionMap = new HashMap<>();
+    private static final long OVERFLOW_REPORT_INTERVAL = 1000;
+    /* Under the files directory; where logs with relative names go */
+    private static final String LOG_DIRECTORY = "caraml-console-logs";
 
     /*--
     /* session privates
@@ -285,6 +532,16 @@ public class ConsoleJS extends JSObject implements CaramlSurface, JSContext.IJSE
     private int backgroundColor;
     private int textColor;
     private float fontSize;
+    private int maxScrollbackLines;
+    private int hotScrollbackLines;
+    private int maxFramesPerSecond;
+    private boolean virtualized;
+    private int maxPendingBytes;
+    private final CommandQueue commands;
+    private ConsoleInputQueue.OverflowPolicy overflowPolicy;
+    private ConsoleLog log = null;
+    private long lastOverflowReport = 0;
+    private boolean overflowReportScheduled = false;
 
     private enum State {
         Init,
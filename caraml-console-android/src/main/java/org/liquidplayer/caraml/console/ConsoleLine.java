@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2019 Eric Lange
+ *
+ * Distributed under the MIT License.  See LICENSE.md at
+ * https://github.com/LiquidPlayer/caraml-console for terms and conditions.
+ */
+package org.liquidplayer.caraml.console;
+
+import java.util.Arrays;
+
+/**
+ * An immutable line of console history: its text plus run-length encoded attributes.
+ * Each run is a start offset into 'text' and the packed TextAttributes that apply from
+ * there to the start of the next run (or the end of the line).
+ */
+final class ConsoleLine {
+    static final ConsoleLine EMPTY = new ConsoleLine("", new int[0]);
+
+    final String text;
+    private final int[] runs;
+
+    ConsoleLine(String text, int[] runs) {
+        this.text = text;
+        this.runs = runs;
+    }
+
+    int length() {
+        return text.length();
+    }
+
+    int runCount() {
+        return runs.length / 2;
+    }
+
+    int runStart(int run) {
+        return runs[run * 2];
+    }
+
+    int runEnd(int run) {
+        return (run + 1 < runCount()) ? runs[(run + 1) * 2] : text.length();
+    }
+
+    int runAttributes(int run) {
+        return runs[run * 2 + 1];
+    }
+
+    /**
+     * Accumulates text and attributes into a line, merging adjacent equal attributes.
+     */
+    static final class Builder {
+        private final StringBuilder text = new StringBuilder();
+        private int[] runs = new int[8];
+        private int runCount = 0;
+
+        void append(int codePoint, int attributes) {
+            if (runCount == 0 || runs[runCount * 2 - 1] != attributes) {
+                if (runs.length < (runCount + 1) * 2) {
+                    runs = Arrays.copyOf(runs, runs.length * 2);
+                }
+                runs[runCount * 2] = text.length();
+                runs[runCount * 2 + 1] = attributes;
+                runCount++;
+            }
+            text.appendCodePoint(codePoint);
+        }
+
+        boolean isEmpty() {
+            return text.length() == 0;
+        }
+
+        ConsoleLine build() {
+            if (text.length() == 0) {
+                return EMPTY;
+            }
+            return new ConsoleLine(text.toString(), Arrays.copyOf(runs, runCount * 2));
+        }
+
+        void clear() {
+            text.setLength(0);
+            runCount = 0;
+        }
+    }
+}
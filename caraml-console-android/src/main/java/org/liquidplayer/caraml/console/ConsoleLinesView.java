@@ -0,0 +1,390 @@
+/*
+ * Copyright (c) 2019 Eric Lange
+ *
+ * Distributed under the MIT License.  See LICENSE.md at
+ * https://github.com/LiquidPlayer/caraml-console for terms and conditions.
+ */
+package org.liquidplayer.caraml.console;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.Typeface;
+import android.text.SpannableStringBuilder;
+import android.text.TextPaint;
+import android.util.TypedValue;
+import android.view.View;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * A console display for very long histories.  Unlike AnsiConsoleTextView, nothing is laid out
+ * up front: the view is as tall as all of the lines together, and each draw only renders the
+ * rows that intersect the visible area, straight from the model.  Every row has the same
+ * height, so finding the rows to draw is a lookup, not a measurement.
+ *
+ * Lines longer than the screen width are wrapped onto as many rows as they need.  Every char
+ * is assumed to occupy one cell.
+ */
+class ConsoleLinesView extends View implements ConsoleDisplay {
+
+    private static final float DEFAULT_TEXT_SIZE = 12f;
+    private static final float ITALIC_SKEW = -0.25f;
+
+    ConsoleLinesView(Context context) {
+        super(context);
+        paint.setTypeface(Typeface.MONOSPACE);
+        setTextSize(DEFAULT_TEXT_SIZE);
+    }
+
+    private final ArrayList<Listener> listeners = new ArrayList<>();
+
+    @Override
+    public void addListener(Listener listener) {
+        if (!listeners.contains(listener))
+            listeners.add(listener);
+    }
+
+    @Override
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    private ConsoleTerminal terminal;
+    private ConsoleOutputStream stream;
+
+    private final TextPaint paint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint backgroundPaint = new Paint();
+    private int lineHeight;
+    private float columnWidth;
+
+    private int textColor = 0xffffffff;
+    private int defaultBackground = 0xff000000;
+    private TextStyles styles = new TextStyles(0xffffffff, 0xff000000);
+
+    /* The following track the model as of the last render, see sync() */
+
+    /* Row at which each indexed scrollback line starts */
+    private final LineIndex lineRows = new LineIndex();
+    /* Number of the first indexed scrollback line, see ScrollbackBuffer */
+    private long firstIndexedLine = 0;
+    private int historyRows = 0;
+    private int totalRows = 0;
+    private int indexedGeneration = 0;
+    private int indexedColumns = 0;
+
+    @Override
+    public void setTerminal(ConsoleTerminal terminal) {
+        if (stream == terminal.stream) return;
+        this.terminal = terminal;
+        stream = terminal.stream;
+        lineRows.clear();
+        indexedColumns = 0;
+        terminal.setListener(onConsoleUpdated);
+        if (pendingText != null) {
+            setDisplayText(pendingText);
+            pendingText = null;
+        }
+        scheduler.invalidate();
+    }
+
+    /* Text set before there was a terminal to write it to */
+    private CharSequence pendingText = null;
+
+    @Override
+    public void setTextSize(float size) {
+        paint.setTextSize(TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, size,
+                getResources().getDisplayMetrics()));
+        Paint.FontMetricsInt metrics = paint.getFontMetricsInt();
+        lineHeight = metrics.descent - metrics.ascent;
+        columnWidth = paint.measureText("X");
+        requestLayout();
+        invalidate();
+    }
+
+    @Override
+    public void setTextColor(int color) {
+        textColor = color;
+        invalidate();
+    }
+
+    @Override
+    public void setDefaultColors(int foreground, int background) {
+        defaultBackground = background;
+        styles = new TextStyles(foreground, background);
+        invalidate();
+    }
+
+    @Override
+    public void setMaxFramesPerSecond(int fps) {
+        scheduler.setMaxFramesPerSecond(fps);
+    }
+
+    @Override
+    public int getColumnWidth() {
+        return (int) Math.ceil(columnWidth);
+    }
+
+    @Override
+    public int getLineHeight() {
+        return lineHeight;
+    }
+
+    @Override
+    public int getContentWidth() {
+        return getMeasuredWidth() - getPaddingLeft() - getPaddingRight();
+    }
+
+    @Override
+    public int getLineTop(int line) {
+        int row;
+        if (line < lineRows.size()) {
+            row = lineRows.start(Math.max(0, line));
+        } else {
+            row = historyRows + line - lineRows.size();
+        }
+        return getPaddingTop() + Math.min(row, totalRows) * lineHeight;
+    }
+
+    @Override
+    public CharSequence getDisplayText() {
+        SpannableStringBuilder text = new SpannableStringBuilder();
+        if (stream == null) return text;
+        synchronized (stream.lock) {
+            ScrollbackBuffer scrollback = stream.getScrollback();
+            for (int i = 0; i < scrollback.size(); i++) {
+                styles.append(text, scrollback.get(i));
+                text.append('\n');
+            }
+            styles.append(text, stream.getPendingLine());
+            ConsoleScreen screen = stream.getScreen();
+            for (int row = 0; row < screen.getUsedRows(); row++) {
+                styles.append(text, stream.getScreenLine(row));
+                if (row < screen.getUsedRows() - 1 && !screen.isWrapped(row)) {
+                    text.append('\n');
+                }
+            }
+        }
+        return text;
+    }
+
+    /**
+     * Replaces the console contents with 'text'.  Styling is not kept; the text is written
+     * to the model as plain output.
+     */
+    @Override
+    public void setDisplayText(CharSequence text) {
+        if (stream == null) {
+            // no model to write to yet; setTerminal() writes it
+            pendingText = text;
+            return;
+        }
+        synchronized (stream.lock) {
+            stream.clear();
+            try {
+                stream.write(text);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        scheduler.invalidate();
+    }
+
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        updateVisibility();
+    }
+
+    @Override
+    protected void onVisibilityChanged(View changedView, int visibility) {
+        super.onVisibilityChanged(changedView, visibility);
+        updateVisibility();
+    }
+
+    private void updateVisibility() {
+        // may be called from the super constructor, before 'scheduler' is set
+        if (scheduler != null) {
+            scheduler.setVisible(getWindowVisibility() == VISIBLE && isShown());
+        }
+    }
+
+    private final ConsoleOutputStream.Listener onConsoleUpdated =
+            new ConsoleOutputStream.Listener() {
+        @Override
+        public void onConsoleUpdated() {
+            scheduler.invalidate();
+        }
+    };
+
+    private final RenderScheduler scheduler = new RenderScheduler(new RenderScheduler.Renderer() {
+        @Override
+        public void render() {
+            long start = System.nanoTime();
+            long latency;
+            int rows = totalRows;
+            synchronized (stream.lock) {
+                latency = terminal.takeDisplayLatency();
+                sync();
+            }
+            if (rows != totalRows) {
+                requestLayout();
+            }
+            invalidate();
+            terminal.recordRender(System.nanoTime() - start, latency);
+            for (Listener listener : listeners) {
+                listener.onDisplayUpdated();
+            }
+        }
+    });
+
+    private static int rowsFor(int length, int columns) {
+        return Math.max(1, (length + columns - 1) / columns);
+    }
+
+    /*
+     * Brings the row index up to date with the model: drops evicted lines from the front and
+     * adds new lines to the end.  The index is only rebuilt when the scrollback was cleared or
+     * the width changed.  Must be called holding stream.lock.
+     */
+    private void sync() {
+        ScrollbackBuffer scrollback = stream.getScrollback();
+        ConsoleScreen screen = stream.getScreen();
+        int columns = screen.getColumns();
+        if (indexedGeneration != stream.getScrollbackGeneration() || indexedColumns != columns) {
+            lineRows.clear();
+            historyRows = 0;
+            firstIndexedLine = scrollback.getFirstLineNumber();
+            indexedGeneration = stream.getScrollbackGeneration();
+            indexedColumns = columns;
+        }
+        long first = scrollback.getFirstLineNumber();
+        if (first > firstIndexedLine) {
+            int evicted = (int) Math.min(first - firstIndexedLine, lineRows.size());
+            int evictedRows = (evicted < lineRows.size()) ? lineRows.start(evicted) : historyRows;
+            lineRows.removeFirst(evicted);
+            historyRows -= evictedRows;
+            firstIndexedLine = first;
+        }
+        for (long line = firstIndexedLine + lineRows.size(); line < scrollback.getLineCount();
+             line++) {
+            lineRows.add(historyRows);
+            historyRows += rowsFor(scrollback.get((int) (line - first)).length(), columns);
+        }
+        int pendingRows = stream.getPendingLine().length() / columns;
+        totalRows = historyRows + pendingRows + screen.getUsedRows();
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        int width = MeasureSpec.getSize(widthMeasureSpec);
+        int height = getPaddingTop() + getPaddingBottom() + totalRows * lineHeight;
+        setMeasuredDimension(width, resolveSize(height, heightMeasureSpec));
+    }
+
+    /* Reused by onDraw */
+    private final Rect clip = new Rect();
+    private final ArrayList<ConsoleLine> visibleLines = new ArrayList<>();
+    private int[] visibleOffsets = new int[64];
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (stream == null || lineHeight == 0 || !canvas.getClipBounds(clip)) return;
+        int top = getPaddingTop();
+        int firstRow = Math.max(0, (clip.top - top) / lineHeight);
+        int lastRow = Math.min(totalRows - 1, (clip.bottom - top) / lineHeight);
+        if (lastRow < firstRow) return;
+        long drawStart = System.nanoTime();
+
+        // Copy out what is needed under the lock, and draw without it
+        int columns;
+        visibleLines.clear();
+        if (visibleOffsets.length < lastRow - firstRow + 1) {
+            visibleOffsets = new int[lastRow - firstRow + 1];
+        }
+        synchronized (stream.lock) {
+            columns = indexedColumns;
+            if (indexedGeneration != stream.getScrollbackGeneration() ||
+                    columns != stream.getScreen().getColumns()) {
+                // the model has moved on in a way that invalidates the index; the next render
+                // will catch up
+                return;
+            }
+            ScrollbackBuffer scrollback = stream.getScrollback();
+            long first = scrollback.getFirstLineNumber();
+            ConsoleLine pending = stream.getPendingLine();
+            int pendingRows = pending.length() / columns;
+            ConsoleScreen screen = stream.getScreen();
+            for (int row = firstRow; row <= lastRow; row++) {
+                ConsoleLine line = null;
+                int offset = 0;
+                if (row < historyRows) {
+                    int index = lineRows.lineAt(row);
+                    long number = firstIndexedLine + index;
+                    if (number >= first && number < scrollback.getLineCount()) {
+                        line = scrollback.get((int) (number - first));
+                        offset = (row - lineRows.start(index)) * columns;
+                    }
+                } else if (row < historyRows + pendingRows) {
+                    line = pending;
+                    offset = (row - historyRows) * columns;
+                } else if (row - historyRows - pendingRows < screen.getUsedRows()) {
+                    line = stream.getScreenLine(row - historyRows - pendingRows);
+                }
+                visibleOffsets[visibleLines.size()] = offset;
+                visibleLines.add(line);
+            }
+        }
+
+        float baseline = top - paint.getFontMetricsInt().ascent;
+        for (int i = 0; i < visibleLines.size(); i++) {
+            ConsoleLine line = visibleLines.get(i);
+            if (line != null) {
+                int start = visibleOffsets[i];
+                drawRow(canvas, line, start, Math.min(line.length(), start + columns),
+                        top + (firstRow + i) * lineHeight,
+                        baseline + (firstRow + i) * lineHeight);
+            }
+        }
+        terminal.recordDraw(System.nanoTime() - drawStart);
+    }
+
+    private void drawRow(Canvas canvas, ConsoleLine line, int start, int end, float y,
+                         float baseline) {
+        float left = getPaddingLeft();
+        for (int run = 0; run < line.runCount(); run++) {
+            int from = Math.max(start, line.runStart(run));
+            int to = Math.min(end, line.runEnd(run));
+            if (from >= to) continue;
+            float x = left + (from - start) * columnWidth;
+            int attributes = line.runAttributes(run);
+            int foreground = TextAttributes.foreground(attributes);
+            int background = TextAttributes.background(attributes);
+            int fg = foreground == TextAttributes.DEFAULT_COLOR ?
+                    textColor : TextAttributes.argb(foreground);
+            int bg = background == TextAttributes.DEFAULT_COLOR ?
+                    0 : TextAttributes.argb(background);
+            if ((attributes & TextAttributes.NEGATIVE) != 0) {
+                int swap = fg;
+                fg = (bg == 0) ? defaultBackground : bg;
+                bg = swap;
+            }
+            if ((attributes & TextAttributes.CONCEAL) != 0) {
+                fg = (bg == 0) ? defaultBackground : bg;
+            }
+            if (bg != 0) {
+                backgroundPaint.setColor(bg);
+                canvas.drawRect(x, y, x + (to - from) * columnWidth, y + lineHeight,
+                        backgroundPaint);
+            }
+            paint.setColor(fg);
+            paint.setFakeBoldText((attributes & TextAttributes.BOLD) != 0);
+            paint.setTextSkewX((attributes & TextAttributes.ITALIC) != 0 ? ITALIC_SKEW : 0);
+            paint.setUnderlineText((attributes & TextAttributes.UNDERLINE) != 0);
+            paint.setStrikeThruText((attributes & TextAttributes.STRIKETHROUGH) != 0);
+            canvas.drawText(line.text, from, to, x, baseline, paint);
+        }
+    }
+}
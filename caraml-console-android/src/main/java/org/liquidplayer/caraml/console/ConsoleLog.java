@@ -0,0 +1,332 @@
+/*
+ * Copyright (c) 2019 Eric Lange
+ *
+ * Distributed under the MIT License.  See LICENSE.md at
+ * https://github.com/LiquidPlayer/caraml-console for terms and conditions.
+ */
+package org.liquidplayer.caraml.console;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A copy of a console session's raw output, written to a file as UTF-8.  Output is handed
+ * over as it is parsed and written in batches on a background thread, so the parser never
+ * waits on the disk; if the writer falls more than MAX_QUEUED_BYTES behind, output is left out
+ * of the log and a "[N bytes not logged]" marker is written in its place.
+ *
+ * The log rotates by size: once 'file' has reached 'maxBytes', it is renamed to 'file.1' (and
+ * 'file.1' to 'file.2', and so on), keeping at most 'maxFiles' files in all.  Files are only
+ * rotated between batches, so they may run over 'maxBytes' by up to BATCH_BYTES.  Escape
+ * sequences can optionally be stripped, leaving plain text.
+ *
+ * The file is kept open while output keeps coming, and closed once the log has been idle for
+ * IDLE_MILLIS, or by close().
+ */
+final class ConsoleLog {
+    static final int DEFAULT_MAX_BYTES = 1024 * 1024;
+    static final int DEFAULT_MAX_FILES = 5;
+
+    private static final int BATCH_BYTES = 64 * 1024;
+    private static final long MAX_QUEUED_BYTES = 4 * 1024 * 1024;
+    private static final long IDLE_MILLIS = 1000;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /* One thread for every log, so that logs cost nothing while idle */
+    private static final ScheduledThreadPoolExecutor writer = new ScheduledThreadPoolExecutor(1,
+            new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "console-log");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    static {
+        writer.setKeepAliveTime(30, TimeUnit.SECONDS);
+        writer.allowCoreThreadTimeOut(true);
+    }
+
+    private final File file;
+    private final long maxBytes;
+    private final int maxFiles;
+    private final boolean stripAnsi;
+
+    /* Chunks of output, each a char[], or a Long counting bytes left out there */
+    private final ConcurrentLinkedQueue<Object> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queued = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    /**
+     * @param file the log file; its directory is created if need be
+     * @param maxBytes rotate once the file is at least this big
+     * @param maxFiles the most files to keep, including 'file'
+     * @param stripAnsi true to leave escape sequences out of the log
+     */
+    ConsoleLog(File file, long maxBytes, int maxFiles, boolean stripAnsi) {
+        this.file = file;
+        this.maxBytes = Math.max(1, maxBytes);
+        this.maxFiles = Math.max(1, maxFiles);
+        this.stripAnsi = stripAnsi;
+    }
+
+    /**
+     * Queues text to be logged.  The chars are copied, so the array may be reused.
+     */
+    void write(char[] chars, int offset, int length) {
+        if (reserve(length)) {
+            offer(Arrays.copyOfRange(chars, offset, offset + length));
+        }
+    }
+
+    private boolean reserve(int length) {
+        if (length == 0) return false;
+        if (queued.addAndGet(length) > MAX_QUEUED_BYTES) {
+            queued.addAndGet(-length);
+            dropped.addAndGet(length);
+            return false;
+        }
+        return true;
+    }
+
+    private void offer(Object chunk) {
+        markGap();
+        queue.offer(chunk);
+        if (scheduled.compareAndSet(false, true)) {
+            writer.execute(drain);
+        }
+    }
+
+    /* Queues a marker for output left out since the last chunk, so it is logged at the gap */
+    private void markGap() {
+        long skipped = dropped.getAndSet(0);
+        if (skipped > 0) {
+            queue.offer(skipped);
+        }
+    }
+
+    /**
+     * Closes the file once everything queued so far has been written, e.g. when the session
+     * ends.  Returns immediately.  Output written afterwards opens the file again.
+     */
+    void close() {
+        markGap();
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeQueued();
+                closeChannel();
+            }
+        });
+    }
+
+    /* -- the writer thread -- */
+
+    private final ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_BYTES);
+    private final CharsetEncoder encoder = UTF8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final ByteBuffer encoded = ByteBuffer.allocate(BATCH_BYTES);
+    /* A high surrogate left at the end of the last chunk of text */
+    private char carry = 0;
+    private FileChannel channel = null;
+    private int escape = Escape.NONE;
+    /* When output was last written, and whether 'idle' is waiting to run */
+    private long lastWrite = 0;
+    private boolean idleScheduled = false;
+
+    private static final class Escape {
+        static final int NONE = 0;
+        static final int ESC = 1;
+        static final int CSI = 2;
+        static final int OSC = 3;
+        static final int OSC_ESC = 4;
+    }
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                writeQueued();
+            } finally {
+                scheduled.set(false);
+            }
+            lastWrite = System.nanoTime();
+            if (channel != null && !idleScheduled) {
+                idleScheduled = true;
+                writer.schedule(idle, IDLE_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            // output offered after the last poll() but before 'scheduled' was cleared
+            if (!queue.isEmpty() && scheduled.compareAndSet(false, true)) {
+                writer.execute(drain);
+            }
+        }
+    };
+
+    private void writeQueued() {
+        try {
+            Object chunk;
+            while ((chunk = queue.poll()) != null) {
+                if (chunk instanceof char[]) {
+                    char[] chars = (char[]) chunk;
+                    queued.addAndGet(-chars.length);
+                    append(chars);
+                } else {
+                    append(("\n[" + chunk + " bytes not logged]\n").toCharArray());
+                }
+            }
+            flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+            batch.clear();
+            closeChannel();
+        }
+    }
+
+    /* Closes the file once nothing has been written for IDLE_MILLIS */
+    private final Runnable idle = new Runnable() {
+        @Override
+        public void run() {
+            long wait = IDLE_MILLIS - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastWrite);
+            if (wait > 0 && channel != null) {
+                writer.schedule(idle, wait, TimeUnit.MILLISECONDS);
+                return;
+            }
+            idleScheduled = false;
+            closeChannel();
+        }
+    };
+
+    private void append(char[] chars) throws IOException {
+        CharBuffer in;
+        if (carry != 0) {
+            in = CharBuffer.allocate(chars.length + 1);
+            in.put(carry).put(chars).flip();
+            carry = 0;
+        } else {
+            in = CharBuffer.wrap(chars);
+        }
+        CoderResult result;
+        do {
+            encoded.clear();
+            result = encoder.encode(in, encoded, false);
+            encoded.flip();
+            append(encoded);
+        } while (result.isOverflow());
+        if (in.hasRemaining()) {
+            carry = in.get();
+        }
+    }
+
+    private void append(ByteBuffer bytes) throws IOException {
+        if (!stripAnsi) {
+            while (bytes.hasRemaining()) {
+                if (!batch.hasRemaining()) flush();
+                int n = Math.min(bytes.remaining(), batch.remaining());
+                ByteBuffer slice = bytes.duplicate();
+                slice.limit(slice.position() + n);
+                batch.put(slice);
+                bytes.position(bytes.position() + n);
+            }
+            return;
+        }
+        // Escape sequences are ASCII, so they can be found in UTF-8 a byte at a time
+        while (bytes.hasRemaining()) {
+            byte b = bytes.get();
+            switch (escape) {
+                case Escape.NONE:
+                    if (b == 0x1b) {
+                        escape = Escape.ESC;
+                    } else {
+                        if (!batch.hasRemaining()) flush();
+                        batch.put(b);
+                    }
+                    break;
+                case Escape.ESC:
+                    escape = (b == '[') ? Escape.CSI : (b == ']') ? Escape.OSC : Escape.NONE;
+                    break;
+                case Escape.CSI:
+                    if (b >= 0x40 && b <= 0x7e) escape = Escape.NONE;
+                    break;
+                case Escape.OSC:
+                    if (b == 0x07) escape = Escape.NONE;
+                    else if (b == 0x1b) escape = Escape.OSC_ESC;
+                    break;
+                case Escape.OSC_ESC:
+                    escape = (b == '\\') ? Escape.NONE : Escape.OSC;
+                    break;
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        batch.flip();
+        if (batch.hasRemaining()) {
+            if (channel == null) {
+                open();
+            } else if (channel.size() >= maxBytes) {
+                closeChannel();
+                rotate();
+                open();
+            }
+            while (batch.hasRemaining()) {
+                channel.write(batch);
+            }
+        }
+        batch.clear();
+    }
+
+    private void open() throws IOException {
+        File directory = file.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        if (file.length() >= maxBytes) {
+            rotate();
+        }
+        channel = new FileOutputStream(file, true).getChannel();
+    }
+
+    private void rotate() {
+        if (maxFiles == 1) {
+            file.delete();
+            return;
+        }
+        rotated(maxFiles - 1).delete();
+        for (int i = maxFiles - 2; i >= 1; i--) {
+            rotated(i).renameTo(rotated(i + 1));
+        }
+        file.renameTo(rotated(1));
+    }
+
+    private File rotated(int index) {
+        return index == 0 ? file : new File(file.getPath() + "." + index);
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            channel = null;
+        }
+    }
+}
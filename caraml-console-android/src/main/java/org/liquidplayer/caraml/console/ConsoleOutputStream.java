@@ -0,0 +1,388 @@
+/*
+ * Copyright (c) 2019 Eric Lange
+ *
+ * Distributed under the MIT License.  See LICENSE.md at
+ * https://github.com/LiquidPlayer/caraml-console for terms and conditions.
+ */
+package org.liquidplayer.caraml.console;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The console's text model.  Output is written into a ConsoleScreen; rows that scroll off
+ * the top of the screen become ConsoleLines of history.  The model is plain Java; turning it
+ * into something displayable is left to the view.
+ *
+ * This class is not thread-safe.  Writers and readers must hold 'lock'.
+ */
+class ConsoleOutputStream extends AnsiOutputStream implements ConsoleScreen.Listener {
+
+    interface Listener {
+        /**
+         * Called on the writing thread when the model has been flushed.
+         */
+        void onConsoleUpdated();
+    }
+
+    static final int DEFAULT_COLUMNS = 80;
+    static final int DEFAULT_ROWS = 24;
+    static final int DEFAULT_MAX_SCROLLBACK_LINES = 10000;
+    private static final int TAB_STOP = 8;
+
+    final Object lock = new Object();
+
+    ConsoleOutputStream(Listener listener) {
+        super(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        });
+        this.listener = listener;
+        screen = new ConsoleScreen(DEFAULT_COLUMNS, DEFAULT_ROWS, this);
+    }
+
+    private final Listener listener;
+    private final ConsoleScreen screen;
+    private final ScrollbackBuffer scrollback =
+            new ScrollbackBuffer(DEFAULT_MAX_SCROLLBACK_LINES);
+    /* Rows that scrolled out as part of a wrapped line that has not yet ended */
+    private final ConsoleLine.Builder pendingLine = new ConsoleLine.Builder();
+    private int scrollbackGeneration = 0;
+    private final ConsoleLine.Builder screenLine = new ConsoleLine.Builder();
+
+    private final Utf8Decoder decoder = new Utf8Decoder();
+    private char highSurrogate = 0;
+
+    /* Current graphic rendition, see TextAttributes */
+    private int attributes = TextAttributes.DEFAULT;
+
+    ConsoleScreen getScreen() {
+        return screen;
+    }
+
+    /**
+     * @return the lines that have scrolled off the screen, oldest first
+     */
+    ScrollbackBuffer getScrollback() {
+        return scrollback;
+    }
+
+    /**
+     * Limits how many lines of history are kept; the oldest are discarded first.
+     * @param maxLines the limit, or 0 to keep everything
+     */
+    void setMaxScrollbackLines(int maxLines) {
+        scrollback.setMaxLines(maxLines);
+    }
+
+    /**
+     * Keeps only the newest history in memory, moving older lines out to a spill.
+     * @param spill where to keep older lines, or null to keep every line in memory
+     * @param hotLines how many lines to keep in memory
+     */
+    void setScrollbackSpill(ScrollbackSpill spill, int hotLines) {
+        scrollback.setSpill(spill, hotLines);
+    }
+
+    /**
+     * Puts lines in front of the history, which must all be older than anything in it.
+     */
+    void prependScrollback(List<ConsoleLine> lines) {
+        List<ConsoleLine> newer = new ArrayList<>(scrollback.size());
+        for (int i = 0; i < scrollback.size(); i++) {
+            newer.add(scrollback.get(i));
+        }
+        scrollback.clear();
+        for (ConsoleLine line : lines) {
+            scrollback.add(line);
+        }
+        for (ConsoleLine line : newer) {
+            scrollback.add(line);
+        }
+        scrollbackGeneration++;
+    }
+
+    /**
+     * @return true if nothing has been written since the last clear()
+     */
+    boolean isEmpty() {
+        return scrollback.size() == 0 && pendingLine.isEmpty() && screen.getUsedRows() == 1 &&
+                screen.getLength(0) == 0;
+    }
+
+    /**
+     * @return the start of a wrapped line whose remainder is still on the screen
+     */
+    ConsoleLine getPendingLine() {
+        return pendingLine.build();
+    }
+
+    /**
+     * @param row a row of the screen
+     * @return the contents of the row; cells that were never written read as spaces
+     */
+    ConsoleLine getScreenLine(int row) {
+        screenLine.clear();
+        for (int column = 0; column < screen.getLength(row); column++) {
+            int codePoint = screen.getCodePoint(row, column);
+            screenLine.append(codePoint == 0 ? ' ' : codePoint, screen.getAttributes(row, column));
+        }
+        return screenLine.build();
+    }
+
+    /**
+     * @return a number that changes whenever existing scrollback is discarded
+     */
+    int getScrollbackGeneration() {
+        return scrollbackGeneration;
+    }
+
+    void resize(int columns, int rows) {
+        screen.resize(columns, rows);
+    }
+
+    /**
+     * Discards all content and resets the graphic rendition.
+     */
+    void clear() {
+        screen.clear();
+        clearScrollback();
+        attributes = TextAttributes.DEFAULT;
+        savedRow = 0;
+        savedColumn = 0;
+    }
+
+    private void clearScrollback() {
+        scrollback.clear();
+        pendingLine.clear();
+        scrollbackGeneration++;
+    }
+
+    @Override
+    public void onScrolledOut(int[] codePoints, int[] attributes, int offset, int length,
+                              boolean wrapped) {
+        for (int i = offset; i < offset + length; i++) {
+            pendingLine.append(codePoints[i] == 0 ? ' ' : codePoints[i], attributes[i]);
+        }
+        if (!wrapped) {
+            scrollback.add(pendingLine.build());
+            pendingLine.clear();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        boolean trace = ConsoleTracing.isEnabled();
+        if (trace) ConsoleTracing.begin(ConsoleTracing.SECTION_FLUSH);
+        try {
+            if (listener != null) {
+                listener.onConsoleUpdated();
+            }
+        } finally {
+            if (trace) ConsoleTracing.end(ConsoleTracing.SECTION_FLUSH);
+        }
+    }
+
+    /* -- text -- */
+
+    @Override
+    protected void processText(int data) throws IOException {
+        processText(new byte[] {(byte) data}, 0, 1);
+    }
+
+    @Override
+    protected void processText(byte[] b, int off, int len) throws IOException {
+        int length = decoder.decode(b, off, len);
+        processText(decoder.chars(), 0, length);
+    }
+
+    @Override
+    protected void processText(char[] c, int off, int len) {
+        final int end = off + len;
+        for (int i = off; i < end; i++) {
+            char ch = c[i];
+            if (ch >= ' ' && ch < 0x7f) {
+                screen.put(ch, attributes);
+            } else {
+                processControlOrUnicode(ch);
+            }
+        }
+    }
+
+    private void processControlOrUnicode(char ch) {
+        switch (ch) {
+            case '\n':
+                screen.newLine();
+                break;
+            case '\r':
+                // later output overwrites the row, so redrawn progress lines do not pile up
+                screen.carriageReturn();
+                break;
+            case '\t': {
+                int column = screen.getCursorColumn();
+                int next = Math.min((column / TAB_STOP + 1) * TAB_STOP, screen.getColumns() - 1);
+                screen.cursorTo(screen.getCursorRow(), next);
+                break;
+            }
+            case '\b':
+                screen.cursorTo(screen.getCursorRow(), screen.getCursorColumn() - 1);
+                break;
+            default:
+                if (Character.isHighSurrogate(ch)) {
+                    highSurrogate = ch;
+                } else if (Character.isLowSurrogate(ch)) {
+                    if (highSurrogate != 0) {
+                        screen.put(Character.toCodePoint(highSurrogate, ch), attributes);
+                    }
+                    highSurrogate = 0;
+                } else if (ch >= 0xa0) {
+                    screen.put(ch, attributes);
+                }
+                // other control characters are ignored
+                break;
+        }
+    }
+
+    /* -- graphic rendition -- */
+
+    @Override
+    protected void processSetAttribute(int attribute) {
+        attributes = TextAttributes.withAttribute(attributes, attribute);
+    }
+
+    @Override
+    protected void processAttributeRest() {
+        attributes = TextAttributes.DEFAULT;
+    }
+
+    @Override
+    protected void processSetForegroundColor(int color, boolean bright) {
+        attributes = TextAttributes.withForeground(attributes,
+                TextAttributes.ansiColor(color, bright));
+    }
+
+    @Override
+    protected void processSetBackgroundColor(int color, boolean bright) {
+        attributes = TextAttributes.withBackground(attributes,
+                TextAttributes.ansiColor(color, bright));
+    }
+
+    @Override
+    protected void processSetForegroundColorExt(int paletteIndex) {
+        attributes = TextAttributes.withForeground(attributes,
+                TextAttributes.paletteColor(paletteIndex));
+    }
+
+    @Override
+    protected void processSetForegroundColorExt(int r, int g, int b) {
+        attributes = TextAttributes.withForeground(attributes, TextAttributes.rgbColor(r, g, b));
+    }
+
+    @Override
+    protected void processSetBackgroundColorExt(int paletteIndex) {
+        attributes = TextAttributes.withBackground(attributes,
+                TextAttributes.paletteColor(paletteIndex));
+    }
+
+    @Override
+    protected void processSetBackgroundColorExt(int r, int g, int b) {
+        attributes = TextAttributes.withBackground(attributes, TextAttributes.rgbColor(r, g, b));
+    }
+
+    @Override
+    protected void processDefaultTextColor() {
+        attributes = TextAttributes.withForeground(attributes, TextAttributes.DEFAULT_COLOR);
+    }
+
+    @Override
+    protected void processDefaultBackgroundColor() {
+        attributes = TextAttributes.withBackground(attributes, TextAttributes.DEFAULT_COLOR);
+    }
+
+    /* -- cursor and erase -- */
+
+    @Override
+    protected void processEraseScreen(int eraseOption) {
+        if (eraseOption == ERASE_SCROLLBACK) {
+            clearScrollback();
+        } else {
+            screen.eraseScreen(eraseOption);
+        }
+    }
+
+    @Override
+    protected void processEraseLine(int eraseOption) {
+        screen.eraseLine(eraseOption);
+    }
+
+    @Override
+    protected void processCursorTo(int row, int col) {
+        boolean trace = ConsoleTracing.isEnabled();
+        if (trace) ConsoleTracing.begin(ConsoleTracing.SECTION_CURSOR_TO);
+        screen.cursorTo(row - 1, col - 1);
+        if (trace) ConsoleTracing.end(ConsoleTracing.SECTION_CURSOR_TO);
+    }
+
+    @Override
+    protected void processCursorToColumn(int x) {
+        screen.cursorTo(screen.getCursorRow(), Math.max(1, x) - 1);
+    }
+
+    @Override
+    protected void processCursorUpLine(int count) {
+        screen.cursorTo(screen.getCursorRow() - count, 0);
+    }
+
+    @Override
+    protected void processCursorDownLine(int count) {
+        screen.cursorTo(screen.getCursorRow() + count, 0);
+    }
+
+    @Override
+    protected void processCursorLeft(int count) {
+        screen.cursorTo(screen.getCursorRow(), screen.getCursorColumn() - count);
+    }
+
+    @Override
+    protected void processCursorRight(int count) {
+        screen.cursorTo(screen.getCursorRow(), screen.getCursorColumn() + count);
+    }
+
+    @Override
+    protected void processCursorDown(int count) {
+        screen.cursorTo(screen.getCursorRow() + count, screen.getCursorColumn());
+    }
+
+    @Override
+    protected void processCursorUp(int count) {
+        screen.cursorTo(screen.getCursorRow() - count, screen.getCursorColumn());
+    }
+
+    /* The saved cursor position.  As on a VT100 there is only one, and it starts at home */
+    private int savedRow = 0;
+    private int savedColumn = 0;
+
+    @Override
+    protected void processRestoreCursorPosition() {
+        screen.cursorTo(savedRow, savedColumn);
+    }
+
+    @Override
+    protected void processSaveCursorPosition() {
+        savedRow = screen.getCursorRow();
+        savedColumn = screen.getCursorColumn();
+    }
+
+    @Override
+    protected void processScrollDown(int optionInt) {
+        screen.scrollDown(optionInt);
+    }
+
+    @Override
+    protected void processScrollUp(int optionInt) {
+        screen.scrollUp(optionInt);
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2019 Eric Lange
+ *
+ * Distributed under the MIT License.  See LICENSE.md at
+ * https://github.com/LiquidPlayer/caraml-console for terms and conditions.
+ */
+package org.liquidplayer.caraml.console;
+
+import java.util.Arrays;
+
+/**
+ * The visible part of the console as a grid of cells.  Each cell holds a code point (0 if
+ * nothing was ever written there) and its packed TextAttributes.  Rows are kept in a ring
+ * so that scrolling is a pointer move, and cursor addressing, overwriting and erasing are
+ * all constant time regardless of how much history sits above the screen.
+ *
+ * Rows that scroll off the top are handed to the Listener, which keeps the history.
+ *
+ * Every character is assumed to occupy a single cell.
+ */
+final class ConsoleScreen {
+
+    interface Listener {
+        /**
+         * Called when a row scrolls off the top of the screen, before it is recycled.
+         * @param codePoints the cell contents
+         * @param attributes the cell attributes
+         * @param offset index of the first cell of the row in both arrays
+         * @param length number of cells in use
+         * @param wrapped true if the row continues on the next row
+         */
+        void onScrolledOut(int[] codePoints, int[] attributes, int offset, int length,
+                           boolean wrapped);
+    }
+
+    private final Listener listener;
+
+    private int columns;
+    private int rows;
+    private int[] codePoints;
+    private int[] attributes;
+    private int[] lengths;
+    private boolean[] wrapped;
+
+    /* physical index of the top row */
+    private int top = 0;
+    /* number of rows from the top that have content or have held the cursor */
+    private int usedRows = 1;
+
+    private int cursorRow = 0;
+    private int cursorColumn = 0;
+    /* the cursor is past the last column; the next character wraps */
+    private boolean pendingWrap = false;
+
+    ConsoleScreen(int columns, int rows, Listener listener) {
+        this.listener = listener;
+        allocate(Math.max(1, columns), Math.max(1, rows));
+    }
+
+    private void allocate(int columns, int rows) {
+        this.columns = columns;
+        this.rows = rows;
+        codePoints = new int[columns * rows];
+        attributes = new int[columns * rows];
+        lengths = new int[rows];
+        wrapped = new boolean[rows];
+        top = 0;
+    }
+
+    private int physical(int row) {
+        int p = top + row;
+        return p >= rows ? p - rows : p;
+    }
+
+    int getColumns() {
+        return columns;
+    }
+
+    int getRows() {
+        return rows;
+    }
+
+    int getUsedRows() {
+        return usedRows;
+    }
+
+    int getCursorRow() {
+        return cursorRow;
+    }
+
+    int getCursorColumn() {
+        return cursorColumn;
+    }
+
+    int getLength(int row) {
+        return lengths[physical(row)];
+    }
+
+    boolean isWrapped(int row) {
+        return wrapped[physical(row)];
+    }
+
+    int getCodePoint(int row, int column) {
+        return codePoints[physical(row) * columns + column];
+    }
+
+    int getAttributes(int row, int column) {
+        return attributes[physical(row) * columns + column];
+    }
+
+    /**
+     * Writes a character at the cursor and advances it, wrapping to the next row if the
+     * previous character filled the last column.
+     */
+    void put(int codePoint, int attributes) {
+        if (pendingWrap) {
+            wrapped[physical(cursorRow)] = true;
+            newLine();
+        }
+        int row = physical(cursorRow);
+        int cell = row * columns + cursorColumn;
+        codePoints[cell] = codePoint;
+        this.attributes[cell] = attributes;
+        if (lengths[row] <= cursorColumn) {
+            lengths[row] = cursorColumn + 1;
+        }
+        if (cursorColumn == columns - 1) {
+            pendingWrap = true;
+        } else {
+            cursorColumn++;
+        }
+    }
+
+    void carriageReturn() {
+        cursorColumn = 0;
+        pendingWrap = false;
+    }
+
+    void lineFeed() {
+        pendingWrap = false;
+        if (cursorRow == rows - 1) {
+            scroll(true);
+        } else {
+            cursorRow++;
+        }
+        if (cursorRow >= usedRows) {
+            usedRows = cursorRow + 1;
+        }
+    }
+
+    void newLine() {
+        carriageReturn();
+        lineFeed();
+    }
+
+    void cursorTo(int row, int column) {
+        cursorRow = Math.max(0, Math.min(row, rows - 1));
+        cursorColumn = Math.max(0, Math.min(column, columns - 1));
+        pendingWrap = false;
+        if (cursorRow >= usedRows) {
+            usedRows = cursorRow + 1;
+        }
+    }
+
+    void eraseLine(int mode) {
+        int row = physical(cursorRow);
+        switch (mode) {
+            case AnsiOutputStream.ERASE_LINE_TO_END:
+                clearCells(row, cursorColumn, columns);
+                lengths[row] = Math.min(lengths[row], cursorColumn);
+                wrapped[row] = false;
+                break;
+            case AnsiOutputStream.ERASE_LINE_TO_BEGINING:
+                clearCells(row, 0, Math.min(cursorColumn + 1, columns));
+                break;
+            case AnsiOutputStream.ERASE_LINE:
+                clearRow(row);
+                break;
+        }
+    }
+
+    void eraseScreen(int mode) {
+        switch (mode) {
+            case AnsiOutputStream.ERASE_SCREEN_TO_END:
+                eraseLine(AnsiOutputStream.ERASE_LINE_TO_END);
+                for (int r = cursorRow + 1; r < rows; r++) {
+                    clearRow(physical(r));
+                }
+                usedRows = cursorRow + 1;
+                break;
+            case AnsiOutputStream.ERASE_SCREEN_TO_BEGINING:
+                for (int r = 0; r < cursorRow; r++) {
+                    clearRow(physical(r));
+                }
+                eraseLine(AnsiOutputStream.ERASE_LINE_TO_BEGINING);
+                break;
+            case AnsiOutputStream.ERASE_SCREEN:
+                for (int r = 0; r < rows; r++) {
+                    clearRow(r);
+                }
+                usedRows = cursorRow + 1;
+                break;
+        }
+    }
+
+    /**
+     * Scrolls the screen contents up, discarding the top rows (SU).
+     */
+    void scrollUp(int count) {
+        for (int i = 0; i < Math.min(count, rows); i++) {
+            scroll(false);
+        }
+    }
+
+    /**
+     * Scrolls the screen contents down, inserting blank rows at the top (SD).
+     */
+    void scrollDown(int count) {
+        for (int i = 0; i < Math.min(count, rows); i++) {
+            top = (top == 0) ? rows - 1 : top - 1;
+            clearRow(top);
+        }
+        usedRows = rows;
+    }
+
+    private void scroll(boolean keep) {
+        if (keep && listener != null) {
+            listener.onScrolledOut(codePoints, attributes, top * columns, lengths[top],
+                    wrapped[top]);
+        }
+        clearRow(top);
+        top = (top + 1 == rows) ? 0 : top + 1;
+    }
+
+    private void clearRow(int row) {
+        clearCells(row, 0, columns);
+        lengths[row] = 0;
+        wrapped[row] = false;
+    }
+
+    private void clearCells(int row, int from, int to) {
+        Arrays.fill(codePoints, row * columns + from, row * columns + to, 0);
+        Arrays.fill(attributes, row * columns + from, row * columns + to,
+                TextAttributes.DEFAULT);
+    }
+
+    /**
+     * Empties the screen and homes the cursor.
+     */
+    void clear() {
+        Arrays.fill(codePoints, 0);
+        Arrays.fill(attributes, TextAttributes.DEFAULT);
+        Arrays.fill(lengths, 0);
+        Arrays.fill(wrapped, false);
+        top = 0;
+        usedRows = 1;
+        cursorRow = cursorColumn = 0;
+        pendingWrap = false;
+    }
+
+    /**
+     * Changes the screen size.  Rows that no longer fit above the cursor are scrolled out to
+     * the listener; rows are truncated or padded to the new width, not reflowed.
+     */
+    void resize(int columns, int rows) {
+        columns = Math.max(1, columns);
+        rows = Math.max(1, rows);
+        if (columns == this.columns && rows == this.rows) {
+            return;
+        }
+        int shift = Math.max(0, cursorRow + 1 - rows);
+        for (int i = 0; i < shift; i++) {
+            scroll(true);
+        }
+        int keep = Math.min(usedRows - shift, rows);
+
+        int oldColumns = this.columns;
+        int[] oldCodePoints = codePoints;
+        int[] oldAttributes = attributes;
+        int[] oldLengths = lengths;
+        boolean[] oldWrapped = wrapped;
+        int[] oldPhysical = new int[keep];
+        for (int r = 0; r < keep; r++) {
+            oldPhysical[r] = physical(r);
+        }
+
+        allocate(columns, rows);
+        int width = Math.min(columns, oldColumns);
+        for (int r = 0; r < keep; r++) {
+            int from = oldPhysical[r];
+            System.arraycopy(oldCodePoints, from * oldColumns, codePoints, r * columns, width);
+            System.arraycopy(oldAttributes, from * oldColumns, attributes, r * columns, width);
+            lengths[r] = Math.min(oldLengths[from], columns);
+            wrapped[r] = oldWrapped[from];
+        }
+        usedRows = Math.max(1, keep);
+        cursorRow -= shift;
+        cursorColumn = Math.min(cursorColumn, columns - 1);
+        pendingWrap = false;
+    }
+}
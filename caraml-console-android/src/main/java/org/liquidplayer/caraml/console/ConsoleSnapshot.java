@@ -0,0 +1,406 @@
+/*
+ * Copyright (c) 2019 Eric Lange
+ *
+ * Distributed under the MIT License.  See LICENSE.md at
+ * https://github.com/LiquidPlayer/caraml-console for terms and conditions.
+ */
+package org.liquidplayer.caraml.console;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A copy of a console's contents and command history, for saving the view's state.  Taking
+ * one only copies references to the (immutable) history lines, so it is cheap on the main
+ * thread however long the history is; it is written out as lines of text plus their
+ * attribute runs, and read back straight into the model.  History that has been spilled out
+ * of memory (see ScrollbackSpill) is not included.
+ *
+ * Saved snapshots are identified by a handle, which is all that needs to go in the view's
+ * saved state.  The most recent few are kept in memory so that a configuration change does
+ * not have to read anything back; they are also written to an app-private file, on a
+ * background thread, so that they survive the process being killed.
+ */
+final class ConsoleSnapshot {
+    interface Callback {
+        /**
+         * Called on a background thread.
+         * @param snapshot the snapshot, or null if it could not be found or read
+         */
+        void onLoaded(ConsoleSnapshot snapshot);
+    }
+
+    private static final int MAGIC = 0x43435331; // "CCS1"
+    private static final int VERSION = 2;
+    private static final int FLAG_COMPRESSED = 1;
+    /* The most chars in a string, or items in a list, that a snapshot is trusted to hold */
+    private static final int MAX_LENGTH = 16 * 1024 * 1024;
+
+    private static final String SUFFIX = ".snapshot";
+    /* Files older than this belong to views whose saved state was thrown away */
+    private static final long STALE_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private static final int MAX_IN_MEMORY = 4;
+
+    /* History lines, oldest first */
+    private final ConsoleLine[] history;
+    /* The start of a wrapped line, followed by the screen rows */
+    private final ConsoleLine[] rows;
+    private final boolean[] wrapped;
+    final List<String> commands;
+    final int item;
+
+    private ConsoleSnapshot(ConsoleLine[] history, ConsoleLine[] rows, boolean[] wrapped,
+                            List<String> commands, int item) {
+        this.history = history;
+        this.rows = rows;
+        this.wrapped = wrapped;
+        this.commands = commands;
+        this.item = item;
+    }
+
+    /**
+     * Copies the model.  Hold 'stream.lock' while calling.
+     * @param commands the command history, which is copied
+     * @param item the position in the command history
+     */
+    static ConsoleSnapshot take(ConsoleOutputStream stream, List<String> commands, int item) {
+        ScrollbackBuffer scrollback = stream.getScrollback();
+        int hotStart = scrollback.getHotStart();
+        ConsoleLine[] history = new ConsoleLine[scrollback.size() - hotStart];
+        for (int i = 0; i < history.length; i++) {
+            history[i] = scrollback.get(hotStart + i);
+        }
+        ConsoleScreen screen = stream.getScreen();
+        ConsoleLine[] rows = new ConsoleLine[screen.getUsedRows() + 1];
+        boolean[] wrapped = new boolean[rows.length];
+        rows[0] = stream.getPendingLine();
+        wrapped[0] = true;
+        for (int row = 0; row < screen.getUsedRows(); row++) {
+            rows[row + 1] = stream.getScreenLine(row);
+            wrapped[row + 1] = screen.isWrapped(row);
+        }
+        return new ConsoleSnapshot(history, rows, wrapped, new ArrayList<>(commands), item);
+    }
+
+    /**
+     * Puts the snapshot's contents back into the model.  If nothing has been written to the
+     * model yet, they replace it, and the screen is rewritten rather than copied, so wrapped
+     * lines re-wrap to the current width.  Otherwise, e.g. if a restarted session printed
+     * something while the snapshot was being read, they all go in front of it as history.
+     * Hold 'stream.lock' while calling.
+     */
+    void restore(ConsoleOutputStream stream) {
+        if (!stream.isEmpty()) {
+            stream.prependScrollback(lines());
+            return;
+        }
+        stream.clear();
+        ScrollbackBuffer scrollback = stream.getScrollback();
+        for (ConsoleLine line : history) {
+            scrollback.add(line);
+        }
+        ConsoleScreen screen = stream.getScreen();
+        for (int i = 0; i < rows.length; i++) {
+            ConsoleLine line = rows[i];
+            for (int run = 0; run < line.runCount(); run++) {
+                int attributes = line.runAttributes(run);
+                for (int c = line.runStart(run); c < line.runEnd(run); ) {
+                    int codePoint = line.text.codePointAt(c);
+                    screen.put(codePoint, attributes);
+                    c += Character.charCount(codePoint);
+                }
+            }
+            if (!wrapped[i] && i < rows.length - 1) {
+                screen.newLine();
+            }
+        }
+    }
+
+    /* The history followed by the screen, with wrapped rows joined back into lines */
+    private List<ConsoleLine> lines() {
+        List<ConsoleLine> lines = new ArrayList<>(history.length + rows.length);
+        Collections.addAll(lines, history);
+        ConsoleLine.Builder line = new ConsoleLine.Builder();
+        for (int i = 0; i < rows.length; i++) {
+            ConsoleLine row = rows[i];
+            for (int run = 0; run < row.runCount(); run++) {
+                int attributes = row.runAttributes(run);
+                for (int c = row.runStart(run); c < row.runEnd(run); ) {
+                    int codePoint = row.text.codePointAt(c);
+                    line.append(codePoint, attributes);
+                    c += Character.charCount(codePoint);
+                }
+            }
+            boolean last = i == rows.length - 1;
+            // the row the cursor was left on is only a line if something was written to it
+            if ((!wrapped[i] && !last) || (last && !line.isEmpty())) {
+                lines.add(line.build());
+                line.clear();
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * @param compress true to deflate the snapshot, which is usually several times smaller
+     */
+    void writeTo(OutputStream out, boolean compress) throws IOException {
+        DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(MAGIC);
+        header.writeInt(VERSION);
+        header.writeInt(compress ? FLAG_COMPRESSED : 0);
+        header.flush();
+        DeflaterOutputStream deflater = null;
+        if (compress) {
+            deflater = new DeflaterOutputStream(out, new Deflater(Deflater.BEST_SPEED));
+            out = deflater;
+        }
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        writeLines(data, history);
+        writeLines(data, rows);
+        for (boolean w : wrapped) {
+            data.writeBoolean(w);
+        }
+        data.writeInt(commands.size());
+        for (String command : commands) {
+            data.writeInt(command.length());
+            data.writeChars(command);
+        }
+        data.writeInt(item);
+        data.flush();
+        if (deflater != null) {
+            deflater.finish();
+        }
+    }
+
+    static ConsoleSnapshot readFrom(InputStream in) throws IOException {
+        DataInputStream header = new DataInputStream(in);
+        if (header.readInt() != MAGIC || header.readInt() != VERSION) {
+            throw new IOException("Not a console snapshot");
+        }
+        if ((header.readInt() & FLAG_COMPRESSED) != 0) {
+            in = new InflaterInputStream(in);
+        }
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        ConsoleLine[] history = readLines(data);
+        ConsoleLine[] rows = readLines(data);
+        boolean[] wrapped = new boolean[rows.length];
+        for (int i = 0; i < wrapped.length; i++) {
+            wrapped[i] = data.readBoolean();
+        }
+        int count = readLength(data);
+        List<String> commands = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            commands.add(readString(data));
+        }
+        int item = data.readInt();
+        return new ConsoleSnapshot(history, rows, wrapped, commands, item);
+    }
+
+    /*
+     * Text is written as UTF-16 so that it round trips exactly, unpaired surrogates and all.
+     * Attributes are written as they are, followed by the RGB of each interned 24-bit color
+     * in them, which is interned again when they are read back (see TextAttributes).
+     */
+    private static void writeLines(DataOutputStream data, ConsoleLine[] lines)
+            throws IOException {
+        data.writeInt(lines.length);
+        for (ConsoleLine line : lines) {
+            data.writeInt(line.length());
+            data.writeChars(line.text);
+            data.writeInt(line.runCount());
+            for (int run = 0; run < line.runCount(); run++) {
+                int attributes = line.runAttributes(run);
+                data.writeInt(line.runStart(run));
+                data.writeInt(attributes);
+                writeColor(data, TextAttributes.foreground(attributes));
+                writeColor(data, TextAttributes.background(attributes));
+            }
+        }
+    }
+
+    private static void writeColor(DataOutputStream data, int color) throws IOException {
+        if (TextAttributes.isRgbColor(color)) {
+            data.writeInt(TextAttributes.argb(color) & 0xffffff);
+        }
+    }
+
+    private static ConsoleLine[] readLines(DataInputStream data) throws IOException {
+        ConsoleLine[] lines = new ConsoleLine[readLength(data)];
+        for (int i = 0; i < lines.length; i++) {
+            String text = readString(data);
+            int[] runs = new int[readLength(data) * 2];
+            for (int r = 0; r < runs.length; r += 2) {
+                runs[r] = data.readInt();
+                if (runs[r] < (r == 0 ? 0 : runs[r - 2]) || runs[r] > text.length()) {
+                    throw new IOException("Corrupt console snapshot");
+                }
+                int attributes = data.readInt();
+                attributes = TextAttributes.withForeground(attributes,
+                        readColor(data, TextAttributes.foreground(attributes)));
+                attributes = TextAttributes.withBackground(attributes,
+                        readColor(data, TextAttributes.background(attributes)));
+                runs[r + 1] = attributes;
+            }
+            lines[i] = text.isEmpty() ? ConsoleLine.EMPTY : new ConsoleLine(text, runs);
+        }
+        return lines;
+    }
+
+    private static int readColor(DataInputStream data, int color) throws IOException {
+        if (!TextAttributes.isRgbColor(color)) {
+            return color;
+        }
+        int rgb = data.readInt();
+        return TextAttributes.rgbColor(rgb >>> 16, rgb >>> 8, rgb);
+    }
+
+    private static String readString(DataInputStream data) throws IOException {
+        char[] chars = new char[readLength(data)];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = data.readChar();
+        }
+        return new String(chars);
+    }
+
+    private static int readLength(DataInputStream data) throws IOException {
+        int length = data.readInt();
+        if (length < 0 || length > MAX_LENGTH) {
+            throw new IOException("Corrupt console snapshot");
+        }
+        return length;
+    }
+
+    /* -- storage -- */
+
+    private static final Map<String, ConsoleSnapshot> recent =
+            new LinkedHashMap<String, ConsoleSnapshot>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ConsoleSnapshot> eldest) {
+                    return size() > MAX_IN_MEMORY;
+                }
+            };
+
+    /* One thread, so that a load always sees the save before it */
+    private static final ThreadPoolExecutor io = new ThreadPoolExecutor(1, 1, 30,
+            TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "console-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    static {
+        io.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Keeps the snapshot under 'handle', replacing any snapshot already there.  Returns
+     * immediately; the file is written in the background.
+     * @param directory an app-private directory to write to
+     */
+    void save(final File directory, final String handle) {
+        synchronized (recent) {
+            recent.remove(handle);
+            recent.put(handle, this);
+        }
+        io.execute(new Runnable() {
+            @Override
+            public void run() {
+                directory.mkdirs();
+                deleteStale(directory);
+                File file = new File(directory, handle + SUFFIX);
+                File temp = new File(directory, handle + SUFFIX + ".tmp");
+                try {
+                    OutputStream out = new FileOutputStream(temp);
+                    try {
+                        writeTo(out, true);
+                    } finally {
+                        out.close();
+                    }
+                    if (!temp.renameTo(file)) {
+                        throw new IOException("Could not rename " + temp);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    temp.delete();
+                }
+            }
+        });
+    }
+
+    /**
+     * Finds the snapshot saved under 'handle'.  Once found, it is no longer kept; it is up to
+     * the view to save it again.
+     * @return the snapshot if it is still in memory, in which case 'callback' is not called;
+     * otherwise null, and the snapshot is read in the background and passed to 'callback'
+     */
+    static ConsoleSnapshot load(final File directory, final String handle,
+                                final Callback callback) {
+        final File file = new File(directory, handle + SUFFIX);
+        synchronized (recent) {
+            ConsoleSnapshot snapshot = recent.remove(handle);
+            if (snapshot != null) {
+                // the copy written by save(), once it has been
+                io.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        file.delete();
+                    }
+                });
+                return snapshot;
+            }
+        }
+        io.execute(new Runnable() {
+            @Override
+            public void run() {
+                ConsoleSnapshot snapshot = null;
+                try {
+                    InputStream in = new FileInputStream(file);
+                    try {
+                        snapshot = readFrom(in);
+                    } finally {
+                        in.close();
+                    }
+                    file.delete();
+                } catch (IOException e) {
+                    // killed before it was written, since cleaned up, or corrupt
+                }
+                callback.onLoaded(snapshot);
+            }
+        });
+        return null;
+    }
+
+    private static void deleteStale(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        long now = System.currentTimeMillis();
+        for (File file : files) {
+            if (now - file.lastModified() > STALE_MILLIS) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2019 Eric Lange
+ *
+ * Distributed under the MIT License.  See LICENSE.md at
+ * https://github.com/LiquidPlayer/caraml-console for terms and conditions.
+ */
+package org.liquidplayer.caraml.console;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A snapshot of where a console session's time goes, from output being printed to it being
+ * displayed.  Counts and times are totals since the session's view was created.
+ */
+public final class ConsoleStats {
+    /**
+     * Receives stats on the main thread, at most once per ConsoleSurface.STATS_INTERVAL while
+     * the console is being updated.
+     */
+    public interface Listener {
+        void onStats(ConsoleStats stats);
+    }
+
+    /**
+     * Upper bounds, in milliseconds, of the latency histogram buckets.  The last bucket holds
+     * everything slower than the last bound.
+     */
+    public static final long[] LATENCY_BOUNDS = {1, 2, 4, 8, 16, 32, 64, 128, 256, 512, 1024};
+
+    /** Chars and bytes of output parsed */
+    public final long bytesParsed;
+    /** Escape sequences parsed */
+    public final long escapeSequences;
+    /** Output waiting to be parsed */
+    public final long pendingBytes;
+    /** Time spent parsing output */
+    public final long parseNanos;
+    /** Time spent flushing the model, which includes telling the display */
+    public final long flushNanos;
+    /** Main thread time spent bringing the display up to date, and drawing it if virtualized */
+    public final long renderNanos;
+    /** Number of display updates */
+    public final long renders;
+    /**
+     * Count of display updates by how long the oldest output they showed had been waiting,
+     * bucketed by LATENCY_BOUNDS.
+     */
+    public final long[] latencyHistogram;
+
+    private ConsoleStats(Collector c, long escapeSequences, long pendingBytes) {
+        bytesParsed = c.bytesParsed.get();
+        this.escapeSequences = escapeSequences;
+        this.pendingBytes = pendingBytes;
+        parseNanos = c.parseNanos.get();
+        flushNanos = c.flushNanos.get();
+        renderNanos = c.renderNanos.get();
+        renders = c.renders.get();
+        latencyHistogram = new long[c.latencies.length()];
+        for (int i = 0; i < latencyHistogram.length; i++) {
+            latencyHistogram[i] = c.latencies.get(i);
+        }
+    }
+
+    /**
+     * Estimates a latency percentile from the histogram.
+     * @param percentile 0 - 100
+     * @return the upper bound in milliseconds of the bucket the percentile falls in, -1 if it
+     * is beyond the last bound, or 0 if nothing has been displayed
+     */
+    public long latencyPercentile(double percentile) {
+        long total = 0;
+        for (long count : latencyHistogram) total += count;
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < LATENCY_BOUNDS.length; i++) {
+            seen += latencyHistogram[i];
+            if (seen >= Math.max(1, rank)) return LATENCY_BOUNDS[i];
+        }
+        return -1;
+    }
+
+    /**
+     * Gathers the numbers for one session.  Recording methods may be called from any thread.
+     */
+    static final class Collector {
+        private final AtomicLong bytesParsed = new AtomicLong();
+        private final AtomicLong parseNanos = new AtomicLong();
+        private final AtomicLong flushNanos = new AtomicLong();
+        private final AtomicLong renderNanos = new AtomicLong();
+        private final AtomicLong renders = new AtomicLong();
+        private final AtomicLongArray latencies = new AtomicLongArray(LATENCY_BOUNDS.length + 1);
+
+        void recordParse(int length, long nanos) {
+            bytesParsed.addAndGet(length);
+            parseNanos.addAndGet(nanos);
+        }
+
+        void recordFlush(long nanos) {
+            flushNanos.addAndGet(nanos);
+        }
+
+        void recordDraw(long nanos) {
+            renderNanos.addAndGet(nanos);
+        }
+
+        /**
+         * @param nanos time taken by the update
+         * @param latencyNanos how long the oldest output shown had been waiting, or -1 if the
+         *                     update did not catch up with the output
+         */
+        void recordRender(long nanos, long latencyNanos) {
+            renderNanos.addAndGet(nanos);
+            renders.incrementAndGet();
+            if (latencyNanos >= 0) {
+                long millis = TimeUnit.NANOSECONDS.toMillis(latencyNanos);
+                int bucket = 0;
+                while (bucket < LATENCY_BOUNDS.length && millis >= LATENCY_BOUNDS[bucket]) {
+                    bucket++;
+                }
+                latencies.incrementAndGet(bucket);
+            }
+        }
+
+        /**
+         * @param escapeSequences the parser's count, read under the model's lock
+         * @param pendingBytes output waiting to be parsed
+         */
+        ConsoleStats snapshot(long escapeSequences, long pendingBytes) {
+            return new ConsoleStats(this, escapeSequences, pendingBytes);
+        }
+    }
+}
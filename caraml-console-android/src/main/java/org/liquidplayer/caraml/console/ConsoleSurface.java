@@ -11,8 +11,11 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 
+import java.io.File;
+
 /**
  * A ConsoleSurface is a node.js ANSI text console.  ConsoleSurface operates by manipulating
  * the 'process' object in node.  It captures output written to stdout and stderr as well as
@@ -43,6 +46,7 @@ public class ConsoleSurface extends ConsoleView {
     @Override
     public void reset() {
         detach();
+        terminal.dispose();
         super.reset();
     }
 
@@ -56,9 +60,27 @@ public class ConsoleSurface extends ConsoleView {
     void setSession(ConsoleJS session) {
         uuid = session.getSessionUUID();
         this.session = session;
+        setSessionOptions();
+    }
+
+    /* Applies the options that must be in place before the view is attached */
+    private void setSessionOptions() {
+        setVirtualized(session.isVirtualized());
+        terminal.setOverflowPolicy(session.getMaxPendingBytes(), session.getOverflowPolicy());
+        terminal.setLog(session.getLog());
+        // the text view keeps every line of history in its own text, so paging the model's
+        // history out would save nothing
+        if (session.isVirtualized() && session.getHotScrollbackLines() > 0) {
+            terminal.setHotScrollbackLines(new File(getContext().getCacheDir(), SPILL_DIRECTORY),
+                    session.getHotScrollbackLines());
+        }
     }
 
+    /* Under the cache directory; holds history paged out of memory, see ScrollbackSpill */
+    private static final String SPILL_DIRECTORY = "caraml-console-scrollback";
+
     void detach() {
+        terminal.release();
         new Handler(Looper.getMainLooper()).post(new Runnable() {
             @Override
             public void run() {
@@ -78,20 +100,54 @@ public class ConsoleSurface extends ConsoleView {
         }
     }
 
-    private String temp = "";
-    void print(String str) {
-        if (consoleTextView == null) {
-            temp = temp + "\u001b[m" + str;
-        } else {
-            if (temp.length() > 0) {
-                consoleTextView.print(temp);
-                temp = "";
-            }
-            consoleTextView.print(str);
-        }
+    /**
+     * @return false if the output was dropped by the pending output limit
+     */
+    boolean print(String str) {
+        return terminal.print(str);
+    }
+    boolean println(String str) {
+        return print(str + "\n");
     }
-    void println(String str) {
-        print(str + "\n");
+
+    /**
+     * @return the amount of output discarded because of overflow since the last call
+     */
+    long takeDroppedBytes() {
+        return terminal.takeDroppedBytes();
+    }
+
+    /**
+     * The least time, in milliseconds, between calls to a stats listener
+     */
+    public static final long STATS_INTERVAL = 1000;
+
+    private ConsoleStats.Listener statsListener = null;
+    private long lastStats = 0;
+
+    /**
+     * Reports the console's stats as it is updated.  Must be called on the main thread.
+     * @param listener receives stats on the main thread, or null to stop
+     */
+    public void setStatsListener(ConsoleStats.Listener listener) {
+        statsListener = listener;
+    }
+
+    /**
+     * @return a snapshot of the console's stats; may be called from any thread
+     */
+    public ConsoleStats getStats() {
+        return terminal.getStats();
+    }
+
+    @Override
+    public void onDisplayUpdated() {
+        super.onDisplayUpdated();
+        long now = SystemClock.uptimeMillis();
+        if (statsListener != null && now - lastStats >= STATS_INTERVAL) {
+            lastStats = now;
+            statsListener.onStats(terminal.getStats());
+        }
     }
 
     @Override
@@ -102,13 +158,11 @@ public class ConsoleSurface extends ConsoleView {
         inputBox.setTextSize(session.getFontSize());
         inputBox.setTextColor(session.getTextColor());
         setBackgroundColor(session.getBackgroundColor());
-        consoleTextView.setTextSize(session.getFontSize());
-        consoleTextView.setTextColor(session.getTextColor());
-
-        if (temp.length() > 0) {
-            consoleTextView.print(temp);
-            temp = "";
-        }
+        consoleDisplay.setTextSize(session.getFontSize());
+        consoleDisplay.setTextColor(session.getTextColor());
+        consoleDisplay.setDefaultColors(session.getTextColor(), session.getBackgroundColor());
+        consoleDisplay.setMaxFramesPerSecond(session.getMaxFramesPerSecond());
+        terminal.setMaxScrollbackLines(session.getMaxScrollbackLines());
     }
 
     /* -- parcelable privates -- */
@@ -128,6 +182,9 @@ public class ConsoleSurface extends ConsoleView {
         super.onRestoreInstanceState(ss.getSuperState());
         uuid = ss.uuid;
         session = ConsoleJS.getSessionFromUUID(uuid);
+        if (session != null) {
+            setSessionOptions();
+        }
     }
 
     static class SavedState extends BaseSavedState {
@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2019 Eric Lange
+ *
+ * Distributed under the MIT License.  See LICENSE.md at
+ * https://github.com/LiquidPlayer/caraml-console for terms and conditions.
+ */
+package org.liquidplayer.caraml.console;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A console session's text: the model, plus the work of parsing output into it.  Output
+ * may be printed from any thread; it is parsed in order on one of the shared ConsoleExecutor
+ * threads.  A ConsoleDisplay renders the model; it is told when the model changes through
+ * the listener.
+ */
+final class ConsoleTerminal {
+
+    ConsoleTerminal() {
+        stream = new ConsoleOutputStream(new ConsoleOutputStream.Listener() {
+            @Override
+            public void onConsoleUpdated() {
+                notifyUpdated();
+            }
+        });
+    }
+
+    /**
+     * The model.  Hold 'stream.lock' while reading it.
+     */
+    final ConsoleOutputStream stream;
+
+    private volatile ConsoleOutputStream.Listener listener = null;
+
+    void setListener(ConsoleOutputStream.Listener listener) {
+        this.listener = listener;
+    }
+
+    private void notifyUpdated() {
+        ConsoleOutputStream.Listener l = listener;
+        if (l != null) {
+            l.onConsoleUpdated();
+        }
+    }
+
+    /**
+     * Queues output to be parsed.
+     * @return false if the output was dropped by the pending output limit
+     */
+    boolean print(String string) {
+        boolean queued = input.offer(string);
+        printed();
+        return queued;
+    }
+
+    boolean println(String string) {
+        return print(string.concat("\n"));
+    }
+
+    /**
+     * Prints a line that bypasses the pending output limit, so that it is never dropped and
+     * never waits for the parser.  Safe to call on the main thread.
+     */
+    void echo(String line) {
+        input.put(line.concat("\n"));
+        printed();
+    }
+
+    /**
+     * Caps how much printed output may be waiting to be parsed.
+     * @param maxPendingBytes the cap, or 0 for no cap
+     * @param policy what to do with output that would exceed the cap
+     */
+    void setOverflowPolicy(int maxPendingBytes, ConsoleInputQueue.OverflowPolicy policy) {
+        input.setOverflowPolicy(maxPendingBytes, policy);
+    }
+
+    /**
+     * @return the amount of output discarded because of overflow since the last call
+     */
+    long takeDroppedBytes() {
+        return input.takeDropped();
+    }
+
+    /**
+     * Limits how many lines of history are kept; the oldest are discarded first.
+     * @param maxLines the limit, or 0 to keep everything
+     */
+    void setMaxScrollbackLines(int maxLines) {
+        synchronized (stream.lock) {
+            stream.setMaxScrollbackLines(maxLines);
+        }
+        notifyUpdated();
+    }
+
+    /**
+     * Copies output to a log as it is parsed.
+     * @param log the log, or null to stop
+     */
+    void setLog(ConsoleLog log) {
+        this.log = log;
+    }
+
+    /**
+     * Keeps only the newest lines of history on the heap; older ones are paged out to
+     * memory-mapped files, and read back as they are displayed.
+     * @param directory an app-private directory for the files
+     * @param hotLines how many lines to keep on the heap, or 0 to keep them all
+     */
+    void setHotScrollbackLines(File directory, int hotLines) {
+        synchronized (stream.lock) {
+            stream.setScrollbackSpill(hotLines > 0 ? new ScrollbackSpill(directory) : null,
+                    hotLines);
+        }
+        notifyUpdated();
+    }
+
+    /**
+     * Sets the size of the screen that cursor addressing applies to.
+     * @param columns width in characters
+     * @param rows height in lines
+     */
+    void setConsoleSize(int columns, int rows) {
+        synchronized (stream.lock) {
+            if (columns == stream.getScreen().getColumns() &&
+                    rows == stream.getScreen().getRows()) {
+                return;
+            }
+            stream.resize(columns, rows);
+        }
+        notifyUpdated();
+    }
+
+    /**
+     * Copies the console's contents, along with a command history to keep with them.
+     * Output that has not been parsed yet is not included.
+     */
+    ConsoleSnapshot snapshot(List<String> commands, int item) {
+        synchronized (stream.lock) {
+            return ConsoleSnapshot.take(stream, commands, item);
+        }
+    }
+
+    /**
+     * Replaces the console's contents with a snapshot's.
+     */
+    void restore(ConsoleSnapshot snapshot) {
+        synchronized (stream.lock) {
+            snapshot.restore(stream);
+        }
+        notifyUpdated();
+    }
+
+    /**
+     * @return the session's stats so far
+     */
+    ConsoleStats getStats() {
+        long escapeSequences;
+        synchronized (stream.lock) {
+            escapeSequences = stream.getEscapeSequenceCount();
+        }
+        return stats.snapshot(escapeSequences, input.getPending());
+    }
+
+    /**
+     * Called by the display, holding 'stream.lock', as it reads the model to update itself.
+     * @return how long the oldest output not yet displayed has been waiting, or -1 if there is
+     * none or some of it has yet to be parsed
+     */
+    long takeDisplayLatency() {
+        if (input.getPending() > 0) return -1;
+        long printed = oldestUndisplayed.getAndSet(0);
+        return printed == 0 ? -1 : System.nanoTime() - printed;
+    }
+
+    /**
+     * Called by the display after it has updated itself.
+     * @param nanos main thread time taken by the update
+     * @param latencyNanos what takeDisplayLatency() returned
+     */
+    void recordRender(long nanos, long latencyNanos) {
+        stats.recordRender(nanos, latencyNanos);
+    }
+
+    /**
+     * Called by a display that draws the model itself, after drawing it.
+     * @param nanos main thread time taken to draw
+     */
+    void recordDraw(long nanos) {
+        stats.recordDraw(nanos);
+    }
+
+    /**
+     * Called when the session goes away.  Output already printed is still parsed, so that it
+     * reaches the display and the log; once it has been, the log is closed and any history
+     * that has been paged out of memory is discarded, deleting its files.  An idle terminal
+     * holds no thread, so this is all there is to release.  Output printed afterwards is
+     * parsed as usual, with all of its history kept in memory.
+     */
+    void release() {
+        releasing.set(true);
+        schedule();
+    }
+
+    /**
+     * Like release(), but discards any output that has not been parsed yet, e.g. when the
+     * console is being reset and nothing will ever display it.
+     */
+    void dispose() {
+        input.clear();
+        releasing.set(false);
+        released();
+    }
+
+    private void released() {
+        ConsoleLog l = log;
+        if (l != null) {
+            l.close();
+        }
+        synchronized (stream.lock) {
+            stream.setScrollbackSpill(null, 0);
+        }
+        notifyUpdated();
+    }
+
+    /* Parse at most this many batches per task, then go to the back of the executor's queue */
+    private static final int MAX_BATCHES_PER_TASK = 4;
+
+    private final ConsoleInputQueue input = new ConsoleInputQueue();
+    private final ConsoleStats.Collector stats = new ConsoleStats.Collector();
+    /* When the oldest output that has not been displayed was printed, or 0 if there is none */
+    private final AtomicLong oldestUndisplayed = new AtomicLong(0);
+    /* Whether 'parse' has been submitted and has not yet finished */
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    /* Whether release() is waiting for the output printed before it to be parsed */
+    private final AtomicBoolean releasing = new AtomicBoolean(false);
+    private volatile ConsoleLog log = null;
+
+    private void printed() {
+        oldestUndisplayed.compareAndSet(0, System.nanoTime());
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            ConsoleExecutor.get().execute(parse);
+        }
+    }
+
+    private final Runnable parse = new Runnable() {
+        @Override
+        public void run() {
+            boolean trace = ConsoleTracing.isEnabled();
+            if (trace) ConsoleTracing.begin(ConsoleTracing.SECTION_DRAIN);
+            try {
+                for (int batch = 0; batch < MAX_BATCHES_PER_TASK; batch++) {
+                    int length = input.poll();
+                    if (length == 0) break;
+                    try {
+                        long start = System.nanoTime();
+                        synchronized (stream.lock) {
+                            stream.write(input.buffer(), 0, length);
+                        }
+                        long parsed = System.nanoTime();
+                        stats.recordParse(length, parsed - start);
+                        ConsoleLog l = log;
+                        if (l != null) {
+                            l.write(input.buffer(), 0, length);
+                        }
+                        stream.flush();
+                        stats.recordFlush(System.nanoTime() - parsed);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            } finally {
+                if (trace) ConsoleTracing.end(ConsoleTracing.SECTION_DRAIN);
+                scheduled.set(false);
+            }
+            // output offered after the last poll() but before 'scheduled' was cleared
+            if (!input.isEmpty()) {
+                schedule();
+            } else if (releasing.compareAndSet(true, false)) {
+                released();
+            }
+        }
+    };
+}
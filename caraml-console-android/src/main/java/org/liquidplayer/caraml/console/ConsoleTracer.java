@@ -0,0 +1,20 @@
+/*
+ * Copyright (c) 2019 Eric Lange
+ *
+ * Distributed under the MIT License.  See LICENSE.md at
+ * https://github.com/LiquidPlayer/caraml-console for terms and conditions.
+ */
+package org.liquidplayer.caraml.console;
+
+/**
+ * Receives the named sections that console output passes through on its way to the screen
+ * (see the ConsoleTracing.SECTION_* names).  Install one with ConsoleTracing.setTracer().
+ *
+ * Sections nest, and each one begins and ends on the same thread.  Calls come from the
+ * JavaScript thread, the output parsing threads and the main thread, so implementations must
+ * be thread safe, and should be quick.
+ */
+public interface ConsoleTracer {
+    void beginSection(String name);
+    void endSection(String name);
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2019 Eric Lange
+ *
+ * Distributed under the MIT License.  See LICENSE.md at
+ * https://github.com/LiquidPlayer/caraml-console for terms and conditions.
+ */
+package org.liquidplayer.caraml.console;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * The tracer that all consoles report to, and the tracers that come with the console.  By
+ * default nothing is traced: call sites check isEnabled() before building a section, so an
+ * uninstalled tracer costs a single volatile read.
+ */
+public final class ConsoleTracing {
+    private ConsoleTracing() {
+    }
+
+    /** Output handed to the console from JavaScript */
+    public static final String SECTION_WRITE = "console.write";
+    /** Queued output being parsed into the console model */
+    public static final String SECTION_DRAIN = "console.drain";
+    /** The console model telling the display that it has changed */
+    public static final String SECTION_FLUSH = "console.flush";
+    /** A cursor position escape sequence being applied */
+    public static final String SECTION_CURSOR_TO = "console.cursorTo";
+    /** The display bringing itself up to date, on the main thread */
+    public static final String SECTION_RENDER = "console.render";
+
+    private static volatile ConsoleTracer tracer = null;
+
+    /**
+     * @param tracer the tracer to report to, or null to stop tracing
+     */
+    public static void setTracer(ConsoleTracer tracer) {
+        ConsoleTracing.tracer = tracer;
+    }
+
+    static boolean isEnabled() {
+        return tracer != null;
+    }
+
+    static void begin(String section) {
+        ConsoleTracer t = tracer;
+        if (t != null) {
+            t.beginSection(section);
+        }
+    }
+
+    static void end(String section) {
+        ConsoleTracer t = tracer;
+        if (t != null) {
+            t.endSection(section);
+        }
+    }
+
+    /**
+     * A tracer that counts and times sections in memory, e.g. so that a test can check how
+     * many renders a burst of output caused.
+     */
+    public static final class Recording implements ConsoleTracer {
+        private final HashMap<String, long[]> sections = new HashMap<>();
+        private final ThreadLocal<ArrayDeque<Long>> starts = new ThreadLocal<ArrayDeque<Long>>() {
+            @Override
+            protected ArrayDeque<Long> initialValue() {
+                return new ArrayDeque<>();
+            }
+        };
+
+        @Override
+        public void beginSection(String name) {
+            starts.get().push(System.nanoTime());
+        }
+
+        @Override
+        public void endSection(String name) {
+            Long start = starts.get().poll();
+            long nanos = (start == null) ? 0 : System.nanoTime() - start;
+            synchronized (sections) {
+                long[] totals = sections.get(name);
+                if (totals == null) {
+                    totals = new long[2];
+                    sections.put(name, totals);
+                }
+                totals[0]++;
+                totals[1] += nanos;
+            }
+        }
+
+        /**
+         * @return the number of times the named section has completed
+         */
+        public long getCount(String name) {
+            synchronized (sections) {
+                long[] totals = sections.get(name);
+                return totals == null ? 0 : totals[0];
+            }
+        }
+
+        /**
+         * @return the total time spent in the named section
+         */
+        public long getNanos(String name) {
+            synchronized (sections) {
+                long[] totals = sections.get(name);
+                return totals == null ? 0 : totals[1];
+            }
+        }
+
+        public void clear() {
+            synchronized (sections) {
+                sections.clear();
+            }
+        }
+    }
+}
@@ -7,7 +7,6 @@
 package org.liquidplayer.caraml.console;
 
 import android.content.Context;
-import android.graphics.Paint;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Parcel;
@@ -25,10 +24,11 @@ import android.widget.ImageButton;
 import android.widget.RelativeLayout;
 import android.widget.TextView;
 
+import java.io.File;
 import java.util.ArrayList;
-import java.util.List;
+import java.util.UUID;
 
-class ConsoleView extends RelativeLayout implements AnsiConsoleTextView.Listener {
+class ConsoleView extends RelativeLayout implements ConsoleDisplay.Listener {
     public ConsoleView(Context context) {
         this(context, null);
     }
@@ -59,7 +59,33 @@ class ConsoleView extends RelativeLayout implements AnsiConsoleTextView.Listener
     protected NestedScrollView scrollView;
     protected ImageButton upHistory;
     protected ImageButton downHistory;
-    protected AnsiConsoleTextView consoleTextView;
+    protected ConsoleDisplay consoleDisplay;
+    protected final ConsoleTerminal terminal = new ConsoleTerminal();
+
+    private boolean virtualized = false;
+
+    /**
+     * Selects how the console is displayed.  Must be called before the view is attached.
+     * @param virtualized true to only draw the lines that are on screen, which keeps very
+     *                    long histories cheap; false to lay the whole history out as text
+     */
+    void setVirtualized(boolean virtualized) {
+        this.virtualized = virtualized;
+    }
+
+    /**
+     * Scrolls so that a line of history is at the top of the console.
+     * @param line the line, 0 being the oldest kept
+     */
+    public void scrollToLine(final int line) {
+        uiThread.post(new Runnable() {
+            @Override
+            public void run() {
+                View view = (View) consoleDisplay;
+                scrollView.scrollTo(0, view.getTop() + consoleDisplay.getLineTop(line));
+            }
+        });
+    }
 
     private void setInputBoxText(final CharSequence text) {
         uiThread.post(new Runnable() {
@@ -73,7 +99,7 @@ class ConsoleView extends RelativeLayout implements AnsiConsoleTextView.Listener
         uiThread.post(new Runnable() {
             @Override
             public void run() {
-                consoleTextView.setDisplayText(text);
+                consoleDisplay.setDisplayText(text);
             }
         });
     }
@@ -139,12 +165,13 @@ class ConsoleView extends RelativeLayout implements AnsiConsoleTextView.Listener
             public void onGlobalLayout() {
                 //scrollView.getViewTreeObserver().removeOnGlobalLayoutListener(this);
 
-                Paint textPaint = consoleTextView.getPaint();
-                int width = Math.round(textPaint.measureText("X") * consoleTextView.getTextScaleX());
-                int height = Math.round(textPaint.getTextSize() * consoleTextView.getTextScaleX());
+                int width = consoleDisplay.getColumnWidth();
+                int height = consoleDisplay.getLineHeight();
+                if (width <= 0 || height <= 0) return;
                 int rows = scrollView.getMeasuredHeight() / height;
-                int columns = scrollView.getMeasuredWidth() / width;
+                int columns = consoleDisplay.getContentWidth() / width;
 
+                terminal.setConsoleSize(columns,rows);
                 resize(columns,rows);
             }
     };
@@ -167,6 +194,7 @@ class ConsoleView extends RelativeLayout implements AnsiConsoleTextView.Listener
         inputBox.setOnEditorActionListener(onEditorAction);
         inputBox.setOnKeyListener(onKeyListener);
         inputBox.setEnabled(false);
+        inputHint = inputBox.getHint();
 
         upHistory = findViewById(R.id.up_history);
         downHistory = findViewById(R.id.down_history);
@@ -179,8 +207,20 @@ class ConsoleView extends RelativeLayout implements AnsiConsoleTextView.Listener
         ViewTreeObserver vto = scrollView.getViewTreeObserver();
         vto.addOnGlobalLayoutListener(onLayout);
 
-        consoleTextView = findViewById(R.id.console_text);
-        consoleTextView.addListener(this);
+        if (consoleDisplay == null) {
+            AnsiConsoleTextView textView = findViewById(R.id.console_text);
+            if (virtualized) {
+                ConsoleLinesView linesView = new ConsoleLinesView(getContext());
+                linesView.setLayoutParams(textView.getLayoutParams());
+                scrollView.removeView(textView);
+                scrollView.addView(linesView);
+                consoleDisplay = linesView;
+            } else {
+                consoleDisplay = textView;
+            }
+        }
+        consoleDisplay.setTerminal(terminal);
+        consoleDisplay.addListener(this);
         // FIXME: Don't forget to removeListener on shutdown
 
         uiThread.post(scrollToBottom);
@@ -203,6 +243,16 @@ class ConsoleView extends RelativeLayout implements AnsiConsoleTextView.Listener
         button.setClickable(enable);
     }
 
+    private CharSequence inputHint;
+
+    /**
+     * Shows, in place of the input hint, how many entered commands have yet to finish.
+     * Must be called on the main thread.
+     */
+    protected void setCommandsPending(int count) {
+        inputBox.setHint(count == 0 ? inputHint : "Running (" + count + ")\u2026");
+    }
+
     private void upHistory() {
         if (upHistory.isEnabled()) {
             item--;
@@ -232,7 +282,8 @@ class ConsoleView extends RelativeLayout implements AnsiConsoleTextView.Listener
     private void enterCommand() {
         final String cmd = inputBox.getText().toString();
 
-        consoleTextView.println("\u001b[1m> " + cmd);
+        // on the main thread, so this must not wait behind output held back under 'block'
+        terminal.echo("\u001b[1m> " + cmd);
         setInputBoxText("");
         history.add(cmd);
         item = history.size();
@@ -245,16 +296,34 @@ class ConsoleView extends RelativeLayout implements AnsiConsoleTextView.Listener
     /* -- parcelable privates -- */
     private int item = 0;
     private ArrayList<String> history = new ArrayList<>();
+    /* Identifies this console's saved contents, see ConsoleSnapshot */
+    private String snapshotHandle = null;
+
+    private File getSnapshotDirectory() {
+        return new File(getContext().getFilesDir(), "caraml-console");
+    }
+
+    private void restore(ConsoleSnapshot snapshot) {
+        terminal.restore(snapshot);
+        history = new ArrayList<>(snapshot.commands);
+        item = snapshot.item;
+        if (upHistory != null) {
+            setButtonEnabled(upHistory,item>0);
+            setButtonEnabled(downHistory,item<history.size());
+        }
+    }
 
     @Override
     protected Parcelable onSaveInstanceState() {
         Parcelable superState = super.onSaveInstanceState();
         SavedState ss = new SavedState(superState);
-        ss.textView = consoleTextView.getText();
+        if (snapshotHandle == null) {
+            snapshotHandle = UUID.randomUUID().toString();
+        }
+        terminal.snapshot(history, item).save(getSnapshotDirectory(), snapshotHandle);
+        ss.snapshot = snapshotHandle;
         if (ss.inputBox != null)
             setInputBoxText(ss.inputBox);
-        ss.item = item;
-        ss.history = history;
         return ss;
     }
 
@@ -262,17 +331,32 @@ class ConsoleView extends RelativeLayout implements AnsiConsoleTextView.Listener
     protected void onRestoreInstanceState(Parcelable state) {
         SavedState ss = (SavedState) state;
         super.onRestoreInstanceState(ss.getSuperState());
-        setConsoleText(ss.textView);
         inputBox.setText(ss.inputBox);
-        item = ss.item;
-        history = new ArrayList<>(ss.history);
+        snapshotHandle = ss.snapshot;
+        if (snapshotHandle == null) return;
+        // After a configuration change the snapshot is still in memory.  After the process was
+        // killed it has to be read back; output printed in the meantime is kept, after it.
+        ConsoleSnapshot snapshot = ConsoleSnapshot.load(getSnapshotDirectory(), snapshotHandle,
+                new ConsoleSnapshot.Callback() {
+            @Override
+            public void onLoaded(final ConsoleSnapshot snapshot) {
+                if (snapshot == null) return;
+                uiThread.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        restore(snapshot);
+                    }
+                });
+            }
+        });
+        if (snapshot != null) {
+            restore(snapshot);
+        }
     }
 
     static class SavedState extends BaseSavedState {
-        private CharSequence textView;
+        private String snapshot;
         private CharSequence inputBox;
-        private int item;
-        private List<String> history;
 
         SavedState(Parcelable superState) {
             super(superState);
@@ -280,19 +364,15 @@ class ConsoleView extends RelativeLayout implements AnsiConsoleTextView.Listener
 
         private SavedState(Parcel in) {
             super(in);
-            textView = TextUtils.CHAR_SEQUENCE_CREATOR.createFromParcel(in);
+            snapshot = in.readString();
             inputBox = TextUtils.CHAR_SEQUENCE_CREATOR.createFromParcel(in);
-            item = in.readInt();
-            in.readStringList(history);
         }
 
         @Override
         public void writeToParcel(Parcel out, int flags) {
             super.writeToParcel(out, flags);
-            TextUtils.writeToParcel(textView,out,flags);
+            out.writeString(snapshot);
             TextUtils.writeToParcel(inputBox,out,flags);
-            out.writeInt(item);
-            out.writeStringList(history);
         }
 
         public static final Creator<SavedState> CREATOR
@@ -23,16 +23,12 @@ package org.liquidplayer.caraml.console;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.ArrayList;
-import java.util.List;
 
 /**
  * @author <a href="http://code.dblock.org">Daniel Doubrovkine</a>
  */
 class HtmlAnsiOutputStream extends AnsiOutputStream {
 
-    private boolean concealOn = false;
-
     @Override
     public void close() throws IOException {
         closeAttributes();
@@ -41,113 +37,241 @@ class HtmlAnsiOutputStream extends AnsiOutputStream {
 
     private static final String[] ANSI_COLOR_MAP = {"black", "red",
             "green", "yellow", "blue", "magenta", "cyan", "white",};
+    /* HTML names of the packed palette colors, filled in as they are used */
+    private static final String[] PALETTE_NAMES = new String[257];
 
-    private static final byte[] BYTES_QUOT = "&quot;".getBytes();
-    private static final byte[] BYTES_AMP = "&amp;".getBytes();
-    private static final byte[] BYTES_LT = "&lt;".getBytes();
-    private static final byte[] BYTES_GT = "&gt;".getBytes();
-    private static final byte[] BYTES_BR = "<br>".getBytes();
-    private static final byte[] BYTES_SP = "&nbsp;".getBytes();
+    private static final String[] ESCAPES = new String[128];
+    private static final byte[][] ESCAPE_BYTES = new byte[128][];
+    static {
+        ESCAPES['"'] = "&quot;";
+        ESCAPES['&'] = "&amp;";
+        ESCAPES['<'] = "&lt;";
+        ESCAPES['>'] = "&gt;";
+        ESCAPES['\n'] = "<br>";
+        ESCAPES[' '] = "&nbsp;";
+        ESCAPES['\r'] = ""; // ignore
+        for (int i = 0; i < ESCAPES.length; i++) {
+            if (ESCAPES[i] != null) ESCAPE_BYTES[i] = ESCAPES[i].getBytes();
+        }
+    }
 
     HtmlAnsiOutputStream(OutputStream os) {
         super(os);
+        html = null;
     }
 
-    private List<String> closingAttributes = new ArrayList<>();
+    /**
+     * Creates a stream that appends its HTML to a StringBuilder instead of encoding it to
+     * bytes.  Text written with the character write methods then stays UTF-16 throughout.
+     * @param html the builder to append to
+     */
+    HtmlAnsiOutputStream(StringBuilder html) {
+        super(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        });
+        this.html = html;
+    }
+
+    private final StringBuilder html;
+    /* Holds back a multi-byte sequence that is split across writes */
+    private final Utf8Decoder decoder = new Utf8Decoder();
+
+    /*
+     * The graphic rendition set by escape sequences, and the one that the currently open tags
+     * are for (see TextAttributes).  Tags are only rewritten when text is written in a
+     * different rendition from the open one.
+     */
+    private int attributes = TextAttributes.DEFAULT;
+    private int written = TextAttributes.DEFAULT;
 
     private void write(String s) throws IOException {
-        super.out.write(s.getBytes());
+        if (html != null) {
+            html.append(s);
+        } else {
+            super.out.write(s.getBytes());
+        }
     }
 
-    private void writeAttribute(String s) throws IOException {
-        write("<" + s + ">");
-        closingAttributes.add(0,s.split(" ")[0]);
+    private void updateAttributes() throws IOException {
+        if (attributes != written) {
+            closeAttributes();
+            openAttributes(attributes);
+        }
     }
 
+    private void openAttributes(int attributes) throws IOException {
+        int fg = foreground(attributes);
+        int bg = background(attributes);
+        if (fg != TextAttributes.DEFAULT_COLOR) {
+            write("<font color=\"");
+            write(htmlColor(fg));
+            write("\">");
+        }
+        if (bg != TextAttributes.DEFAULT_COLOR) {
+            write("<font background-color=\"");
+            write(htmlColor(bg));
+            write("\">");
+        }
+        if ((attributes & TextAttributes.BOLD) != 0) write("<strong>");
+        if ((attributes & TextAttributes.ITALIC) != 0) write("<em>");
+        if ((attributes & TextAttributes.UNDERLINE) != 0) write("<u>");
+        if ((attributes & TextAttributes.STRIKETHROUGH) != 0) write("<s>");
+        if ((attributes & TextAttributes.CONCEAL) != 0) write("<span style=\"visibility:hidden\">");
+        written = attributes;
+    }
+
+    /* Closes the open tags, innermost first */
     private void closeAttributes() throws IOException {
-        for (String attr : closingAttributes) {
-            write("</" + attr + ">");
+        if ((written & TextAttributes.CONCEAL) != 0) write("</span>");
+        if ((written & TextAttributes.STRIKETHROUGH) != 0) write("</s>");
+        if ((written & TextAttributes.UNDERLINE) != 0) write("</u>");
+        if ((written & TextAttributes.ITALIC) != 0) write("</em>");
+        if ((written & TextAttributes.BOLD) != 0) write("</strong>");
+        if (background(written) != TextAttributes.DEFAULT_COLOR) write("</font>");
+        if (foreground(written) != TextAttributes.DEFAULT_COLOR) write("</font>");
+        written = TextAttributes.DEFAULT;
+    }
+
+    /* Colors as displayed, i.e. swapped for negative text */
+    private static int foreground(int attributes) {
+        return (attributes & TextAttributes.NEGATIVE) != 0 ? TextAttributes.background(attributes)
+                : TextAttributes.foreground(attributes);
+    }
+
+    private static int background(int attributes) {
+        return (attributes & TextAttributes.NEGATIVE) != 0 ? TextAttributes.foreground(attributes)
+                : TextAttributes.background(attributes);
+    }
+
+    /* An HTML color for a packed color: a name for the eight basic colors, else #rrggbb */
+    private static String htmlColor(int color) {
+        if (color <= ANSI_COLOR_MAP.length) {
+            return ANSI_COLOR_MAP[color - 1];
         }
-        closingAttributes.clear();
-    }
-
-    public void write(int data) throws IOException {
-        switch (data) {
-            case 34: // "
-                out.write(BYTES_QUOT);
-                break;
-            case 38: // &
-                out.write(BYTES_AMP);
-                break;
-            case 60: // <
-                out.write(BYTES_LT);
-                break;
-            case 62: // >
-                out.write(BYTES_GT);
-                break;
-            case '\r':
-                // ignore
-                break;
-            case '\n': // <br>
-                out.write(BYTES_BR);
-                break;
-            case ' ':
-                out.write(BYTES_SP);
-                break;
-            default:
-                super.write(data);
+        String name = color < PALETTE_NAMES.length ? PALETTE_NAMES[color] : null;
+        if (name == null) {
+            name = String.format("#%06x", TextAttributes.argb(color) & 0xffffff);
+            if (color < PALETTE_NAMES.length) {
+                PALETTE_NAMES[color] = name;
+            }
         }
+        return name;
     }
 
-    public void writeLine(byte[] buf, int offset, int len) throws IOException {
-        write(buf, offset, len);
-        closeAttributes();
+    @Override
+    protected void processText(int data) throws IOException {
+        updateAttributes();
+        if (html != null) {
+            processText(new byte[] {(byte) data}, 0, 1);
+        } else if (data < 0x80 && ESCAPE_BYTES[data] != null) {
+            out.write(ESCAPE_BYTES[data]);
+        } else {
+            out.write(data);
+        }
     }
 
     @Override
-    protected void processSetAttribute(int attribute) throws IOException {
-        switch (attribute) {
-            case ATTRIBUTE_CONCEAL_ON:
-                write("\u001B[8m");
-                concealOn = true;
-                break;
-            case ATTRIBUTE_INTENSITY_BOLD:
-                writeAttribute("strong");
-                break;
-            case ATTRIBUTE_INTENSITY_NORMAL:
-                closeAttributes();
-                break;
-            case ATTRIBUTE_UNDERLINE:
-                writeAttribute("u");
-                break;
-            case ATTRIBUTE_UNDERLINE_OFF:
-                closeAttributes();
-                break;
-            case ATTRIBUTE_NEGATIVE_ON:
-                break;
-            case ATTRIBUTE_NEGATIVE_Off:
-                break;
-            default:
-                break;
+    protected void processText(byte[] b, int off, int len) throws IOException {
+        updateAttributes();
+        if (html != null) {
+            int length = decoder.decode(b, off, len);
+            processText(decoder.chars(), 0, length);
+            return;
+        }
+        final int end = off + len;
+        int start = off;
+        for (int i = off; i < end; i++) {
+            byte data = b[i];
+            if (data >= 0 && ESCAPE_BYTES[data] != null) {
+                if (i > start) {
+                    out.write(b, start, i - start);
+                }
+                out.write(ESCAPE_BYTES[data]);
+                start = i + 1;
+            }
+        }
+        if (end > start) {
+            out.write(b, start, end - start);
         }
     }
 
     @Override
-    protected void processAttributeRest() throws IOException {
-        if (concealOn) {
-            write("\u001B[0m");
-            concealOn = false;
+    protected void processText(char[] c, int off, int len) throws IOException {
+        if (html == null) {
+            super.processText(c, off, len);
+            return;
+        }
+        updateAttributes();
+        final int end = off + len;
+        int start = off;
+        for (int i = off; i < end; i++) {
+            char data = c[i];
+            if (data < 0x80 && ESCAPES[data] != null) {
+                html.append(c, start, i - start).append(ESCAPES[data]);
+                start = i + 1;
+            }
         }
+        html.append(c, start, end - start);
+    }
+
+    public void writeLine(byte[] buf, int offset, int len) throws IOException {
+        write(buf, offset, len);
         closeAttributes();
     }
 
     @Override
-    protected void processSetForegroundColor(int color, boolean bright) throws IOException {
-        writeAttribute("font color=\"" + ANSI_COLOR_MAP[color] + "\"");
+    protected void processSetAttribute(int attribute) {
+        attributes = TextAttributes.withAttribute(attributes, attribute);
+    }
+
+    @Override
+    protected void processAttributeRest() {
+        attributes = TextAttributes.DEFAULT;
+    }
+
+    @Override
+    protected void processSetForegroundColor(int color, boolean bright) {
+        attributes = TextAttributes.withForeground(attributes,
+                TextAttributes.ansiColor(color, bright));
+    }
+
+    @Override
+    protected void processSetBackgroundColor(int color, boolean bright) {
+        attributes = TextAttributes.withBackground(attributes,
+                TextAttributes.ansiColor(color, bright));
+    }
+
+    @Override
+    protected void processSetForegroundColorExt(int paletteIndex) {
+        attributes = TextAttributes.withForeground(attributes,
+                TextAttributes.paletteColor(paletteIndex));
+    }
+
+    @Override
+    protected void processSetForegroundColorExt(int r, int g, int b) {
+        attributes = TextAttributes.withForeground(attributes, TextAttributes.rgbColor(r, g, b));
+    }
+
+    @Override
+    protected void processSetBackgroundColorExt(int paletteIndex) {
+        attributes = TextAttributes.withBackground(attributes,
+                TextAttributes.paletteColor(paletteIndex));
+    }
+
+    @Override
+    protected void processSetBackgroundColorExt(int r, int g, int b) {
+        attributes = TextAttributes.withBackground(attributes, TextAttributes.rgbColor(r, g, b));
+    }
+
+    @Override
+    protected void processDefaultTextColor() {
+        attributes = TextAttributes.withForeground(attributes, TextAttributes.DEFAULT_COLOR);
     }
 
     @Override
-    protected void processSetBackgroundColor(int color, boolean bright) throws IOException {
-        writeAttribute("font background-color=\"" + ANSI_COLOR_MAP[color] + "\"");
+    protected void processDefaultBackgroundColor() {
+        attributes = TextAttributes.withBackground(attributes, TextAttributes.DEFAULT_COLOR);
     }
 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2019 Eric Lange
+ *
+ * Distributed under the MIT License.  See LICENSE.md at
+ * https://github.com/LiquidPlayer/caraml-console for terms and conditions.
+ */
+package org.liquidplayer.caraml.console;
+
+import java.util.Arrays;
+
+/**
+ * Start offsets of the lines of a block of text, kept up to date as lines are appended to
+ * the end or removed from the front, so that line <-> offset lookups never have to scan the
+ * text itself.
+ */
+final class LineIndex {
+    private int[] starts = new int[64];
+    /* index into 'starts' of line 0 */
+    private int first = 0;
+    private int count = 0;
+    /* amount to subtract from stored offsets, grows as lines are removed from the front */
+    private int base = 0;
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * Records the start of a new last line.
+     * @param start offset of the line, not less than the start of the previous line
+     */
+    void add(int start) {
+        if (first + count == starts.length) {
+            if (first > starts.length / 2) {
+                System.arraycopy(starts, first, starts, 0, count);
+            } else {
+                starts = Arrays.copyOf(starts, starts.length * 2);
+                System.arraycopy(starts, first, starts, 0, count);
+            }
+            first = 0;
+        }
+        starts[first + count++] = start + base;
+    }
+
+    /**
+     * Records the start offsets of every line in a block of text.
+     * @param text the text
+     * @param offset where 'text' starts
+     */
+    void addLines(CharSequence text, int offset) {
+        if (text.length() == 0) return;
+        add(offset);
+        for (int i = 0; i < text.length() - 1; i++) {
+            if (text.charAt(i) == '\n') {
+                add(offset + i + 1);
+            }
+        }
+    }
+
+    /**
+     * @return the offset at which 'line' starts
+     */
+    int start(int line) {
+        return starts[first + line] - base;
+    }
+
+    /**
+     * @return the line containing 'offset', or -1 if there are no lines
+     */
+    int lineAt(int offset) {
+        int key = offset + base;
+        int lo = first;
+        int hi = first + count - 1;
+        if (hi < lo) return -1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (starts[mid] <= key) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo - first;
+    }
+
+    /**
+     * Forgets the first 'lines' lines; the offsets of the remaining lines shift down so
+     * that the first remaining line starts at 0.
+     */
+    void removeFirst(int lines) {
+        lines = Math.min(lines, count);
+        if (lines == 0) return;
+        first += lines;
+        count -= lines;
+        if (count == 0) {
+            clear();
+        } else {
+            base = starts[first];
+        }
+    }
+
+    void clear() {
+        first = 0;
+        count = 0;
+        base = 0;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2019 Eric Lange
+ *
+ * Distributed under the MIT License.  See LICENSE.md at
+ * https://github.com/LiquidPlayer/caraml-console for terms and conditions.
+ */
+package org.liquidplayer.caraml.console;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Coalesces requests to re-render into at most one render per display frame, optionally
+ * further limited to a maximum frame rate.  invalidate() may be called from any thread and as
+ * often as needed; the Renderer is always called on the main thread.  While hidden, changes
+ * are only remembered and rendered once visible again.
+ */
+final class RenderScheduler implements Choreographer.FrameCallback {
+
+    interface Renderer {
+        void render();
+    }
+
+    RenderScheduler(Renderer renderer) {
+        this.renderer = renderer;
+    }
+
+    private final Renderer renderer;
+    private final Handler uiThread = new Handler(Looper.getMainLooper());
+
+    /* There are changes that have not been rendered */
+    private final AtomicBoolean dirty = new AtomicBoolean(false);
+    /* A frame callback is posted or about to be */
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    /* The following are only touched on the main thread */
+    private boolean visible = true;
+    private long frameIntervalNanos = 0;
+    private long lastFrameNanos = 0;
+
+    private final Runnable postFrame = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(RenderScheduler.this);
+        }
+    };
+
+    /**
+     * Limits how often the Renderer is called.
+     * @param fps the most renders per second, or 0 to render at the display's frame rate
+     */
+    void setMaxFramesPerSecond(int fps) {
+        frameIntervalNanos = fps > 0 ? TimeUnit.SECONDS.toNanos(1) / fps : 0;
+    }
+
+    /**
+     * Must be called on the main thread.
+     * @param visible false to stop rendering until visible again
+     */
+    void setVisible(boolean visible) {
+        this.visible = visible;
+        if (visible && dirty.get()) {
+            schedule();
+        }
+    }
+
+    /**
+     * Notes that something has changed and needs rendering.
+     */
+    void invalidate() {
+        dirty.set(true);
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            uiThread.post(postFrame);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!visible) {
+            scheduled.set(false);
+            return;
+        }
+        long wait = lastFrameNanos + frameIntervalNanos - frameTimeNanos;
+        if (frameIntervalNanos > 0 && wait > 0) {
+            Choreographer.getInstance().postFrameCallbackDelayed(this,
+                    TimeUnit.NANOSECONDS.toMillis(wait));
+            return;
+        }
+        lastFrameNanos = frameTimeNanos;
+        scheduled.set(false);
+        if (dirty.getAndSet(false)) {
+            boolean trace = ConsoleTracing.isEnabled();
+            if (trace) ConsoleTracing.begin(ConsoleTracing.SECTION_RENDER);
+            try {
+                renderer.render();
+            } finally {
+                if (trace) ConsoleTracing.end(ConsoleTracing.SECTION_RENDER);
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2019 Eric Lange
+ *
+ * Distributed under the MIT License.  See LICENSE.md at
+ * https://github.com/LiquidPlayer/caraml-console for terms and conditions.
+ */
+package org.liquidplayer.caraml.console;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Lines of console history in a ring that holds at most 'maxLines' lines.  Once full, adding
+ * a line evicts the oldest one.  Lines are also numbered from the first line ever added, so
+ * that a reader can tell which lines it has already seen and which were evicted unseen.
+ *
+ * With a spill (see setSpill()), only the newest 'hotLines' lines are kept in the ring; older
+ * ones are moved out to the spill, off the Java heap, and 'maxLines' applies to both together.
+ */
+final class ScrollbackBuffer {
+    /* Capacity when there is no limit or the limit is large */
+    private static final int INITIAL_CAPACITY = 256;
+
+    private ConsoleLine[] lines;
+    private int first = 0;
+    private int size = 0;
+    private int maxLines;
+    private ScrollbackSpill spill = null;
+    private int hotLines = 0;
+    /* Total number of lines ever added */
+    private long added = 0;
+
+    /**
+     * @param maxLines most lines to keep, or 0 for no limit
+     */
+    ScrollbackBuffer(int maxLines) {
+        this.maxLines = Math.max(0, maxLines);
+        lines = new ConsoleLine[initialCapacity()];
+    }
+
+    private int initialCapacity() {
+        int limit = ringLimit();
+        return limit == 0 ? INITIAL_CAPACITY : Math.min(limit, INITIAL_CAPACITY);
+    }
+
+    /* The most lines the ring may hold, or 0 for no limit */
+    private int ringLimit() {
+        if (spill == null) return maxLines;
+        return maxLines == 0 ? hotLines : Math.min(hotLines, maxLines);
+    }
+
+    /**
+     * Moves history beyond the newest 'hotLines' lines out to 'spill' as lines are added.
+     * Lines already kept stay where they are until then.
+     * @param spill where to keep older lines, or null to keep every line in memory; a previous
+     *              spill is closed, discarding the lines in it
+     * @param hotLines how many lines to keep in memory; at least 1
+     */
+    void setSpill(ScrollbackSpill spill, int hotLines) {
+        if (this.spill != null && this.spill != spill) {
+            this.spill.close();
+        }
+        this.spill = spill;
+        this.hotLines = Math.max(1, hotLines);
+        setMaxLines(maxLines);
+    }
+
+    /**
+     * @return the index of the oldest line kept in memory; lines before it are in the spill
+     */
+    int getHotStart() {
+        return (int) coldSize();
+    }
+
+    private long coldSize() {
+        return spill == null ? 0 : spill.size();
+    }
+
+    int getMaxLines() {
+        return maxLines;
+    }
+
+    /**
+     * Changes the limit, evicting the oldest lines if there are now too many.
+     * @param maxLines most lines to keep, or 0 for no limit
+     */
+    void setMaxLines(int maxLines) {
+        maxLines = Math.max(0, maxLines);
+        this.maxLines = maxLines;
+        if (spill != null) {
+            while (spill.size() > 0 && maxLines != 0 && spill.size() + size > maxLines) {
+                spill.removeFirst();
+            }
+        }
+        int limit = ringLimit();
+        int keep = (limit == 0) ? size : Math.min(size, limit);
+        // with a spill, lines beyond the ring's limit move out rather than being evicted
+        int spilled = 0;
+        if (spill != null) {
+            int overLimit = (maxLines == 0) ? size : Math.min(size, maxLines);
+            for (; spilled < overLimit - keep; spilled++) {
+                if (!spill(hot(size - overLimit + spilled))) break;
+            }
+            if (spilled < overLimit - keep) keep = overLimit;
+        }
+        ConsoleLine[] kept = new ConsoleLine[Math.max(keep, initialCapacity())];
+        for (int i = 0; i < keep; i++) {
+            kept[i] = hot(size - keep + i);
+        }
+        lines = kept;
+        first = 0;
+        size = keep;
+    }
+
+    /*
+     * Moves a line out to the spill.  If that fails, the spill is dropped, along with the lines
+     * already in it, and the buffer goes back to keeping every line in memory.
+     * @return false if the spill was dropped
+     */
+    private boolean spill(ConsoleLine line) {
+        try {
+            spill.append(line);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            spill.close();
+            spill = null;
+            return false;
+        }
+    }
+
+    int size() {
+        return (int) (coldSize() + size);
+    }
+
+    /**
+     * @return the line 'index' lines after the oldest one kept
+     */
+    ConsoleLine get(int index) {
+        long cold = coldSize();
+        if (index < cold) {
+            return spill.get(index);
+        }
+        return hot((int) (index - cold));
+    }
+
+    private ConsoleLine hot(int index) {
+        int i = first + index;
+        return lines[i >= lines.length ? i - lines.length : i];
+    }
+
+    /**
+     * @return the number of the oldest line kept, counting from the first line ever added
+     */
+    long getFirstLineNumber() {
+        return added - size();
+    }
+
+    /**
+     * @return the total number of lines ever added
+     */
+    long getLineCount() {
+        return added;
+    }
+
+    void add(ConsoleLine line) {
+        added++;
+        if (spill != null && size == ringLimit() && size == hotLines) {
+            if (spill(hot(0))) {
+                lines[first] = line;
+                first = (first + 1 == lines.length) ? 0 : first + 1;
+                if (maxLines != 0 && spill.size() + size > maxLines) {
+                    spill.removeFirst();
+                }
+                return;
+            }
+        }
+        int limit = ringLimit();
+        if (limit != 0 && size == limit) {
+            lines[first] = line;
+            first = (first + 1 == lines.length) ? 0 : first + 1;
+            return;
+        }
+        if (size == lines.length) {
+            int capacity = lines.length * 2;
+            if (limit != 0) capacity = Math.min(capacity, limit);
+            ConsoleLine[] grown = new ConsoleLine[capacity];
+            for (int i = 0; i < size; i++) {
+                grown[i] = hot(i);
+            }
+            lines = grown;
+            first = 0;
+        }
+        int i = first + size;
+        lines[i >= lines.length ? i - lines.length : i] = line;
+        size++;
+    }
+
+    /**
+     * Discards every line.  Line numbering carries on from where it was.
+     */
+    void clear() {
+        if (spill != null) {
+            spill.clear();
+        }
+        Arrays.fill(lines, null);
+        first = 0;
+        size = 0;
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2019 Eric Lange
+ *
+ * Distributed under the MIT License.  See LICENSE.md at
+ * https://github.com/LiquidPlayer/caraml-console for terms and conditions.
+ */
+package org.liquidplayer.caraml.console;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.UUID;
+
+/**
+ * Cold console history, kept in memory-mapped files instead of on the Java heap.  Lines are
+ * appended at the new end and discarded from the old end, and decoded again when they are
+ * read.
+ *
+ * The lines are stored in segments of at least SEGMENT_BYTES, one file each.  Within a
+ * segment, encoded lines grow up from the start and a table of their offsets grows down from
+ * the end; a segment is full when the two would meet.  Once every line in the oldest segment
+ * has been discarded, its file is deleted.
+ *
+ * A line is its length in chars, each char, its run count, then each run's start (as a delta
+ * from the previous run's) and attributes, all as unsigned varints.  ASCII text takes a byte
+ * per char.
+ *
+ * Not thread safe; ScrollbackBuffer is only used under the model's lock.
+ */
+final class ScrollbackSpill {
+    static final int SEGMENT_BYTES = 4 * 1024 * 1024;
+
+    private static boolean cleaned = false;
+
+    private static final class Segment {
+        final File file;
+        final RandomAccessFile raf;
+        final MappedByteBuffer buffer;
+        /* Number of the segment's first line, counting from the first line ever appended */
+        final long base;
+        int count = 0;
+        int end = 0;
+
+        Segment(File file, int capacity, long base) throws IOException {
+            this.file = file;
+            this.base = base;
+            raf = new RandomAccessFile(file, "rw");
+            try {
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            } catch (IOException e) {
+                raf.close();
+                file.delete();
+                throw e;
+            }
+        }
+
+        boolean fits(int bytes) {
+            return end + bytes + (count + 1) * 4 <= buffer.capacity();
+        }
+
+        void setOffset(int line, int offset) {
+            buffer.putInt(buffer.capacity() - (line + 1) * 4, offset);
+        }
+
+        int getOffset(int line) {
+            return buffer.getInt(buffer.capacity() - (line + 1) * 4);
+        }
+
+        void close() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            // the mapping itself goes when the buffer is collected
+            file.delete();
+        }
+    }
+
+    private final File directory;
+    private final ArrayList<Segment> segments = new ArrayList<>();
+    /* Lines ever appended, and lines discarded from the old end */
+    private long appended = 0;
+    private long discarded = 0;
+    private boolean closed = false;
+    private byte[] scratch = new byte[256];
+
+    /**
+     * @param root an app-private directory, e.g. under getCacheDir(); each spill makes its
+     *             own directory in it.  Leftovers from earlier processes are deleted.
+     */
+    ScrollbackSpill(File root) {
+        synchronized (ScrollbackSpill.class) {
+            if (!cleaned) {
+                cleaned = true;
+                delete(root);
+            }
+        }
+        directory = new File(root, UUID.randomUUID().toString());
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                delete(f);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * @return the number of lines held
+     */
+    long size() {
+        return appended - discarded;
+    }
+
+    void append(ConsoleLine line) throws IOException {
+        if (closed) {
+            throw new IOException("Spill is closed");
+        }
+        int length = encode(line);
+        Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (segment == null || !segment.fits(length)) {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create " + directory);
+            }
+            File file = new File(directory, Long.toString(appended));
+            segment = new Segment(file, Math.max(SEGMENT_BYTES, length + 4), appended);
+            segments.add(segment);
+        }
+        segment.buffer.position(segment.end);
+        segment.buffer.put(scratch, 0, length);
+        segment.setOffset(segment.count, segment.end);
+        segment.end += length;
+        segment.count++;
+        appended++;
+    }
+
+    /**
+     * @param index the line 'index' lines after the oldest one held
+     */
+    ConsoleLine get(long index) {
+        long number = discarded + index;
+        int low = 0;
+        int high = segments.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (segments.get(mid).base <= number) low = mid;
+            else high = mid - 1;
+        }
+        Segment segment = segments.get(low);
+        return decode(segment.buffer, segment.getOffset((int) (number - segment.base)));
+    }
+
+    /**
+     * Discards the oldest line.
+     */
+    void removeFirst() {
+        if (size() == 0) return;
+        discarded++;
+        Segment oldest = segments.get(0);
+        if (discarded >= oldest.base + oldest.count && oldest != segments.get(segments.size() - 1)) {
+            oldest.close();
+            segments.remove(0);
+        }
+    }
+
+    /**
+     * Discards every line and deletes the files.  The spill may be appended to again.
+     */
+    void clear() {
+        for (Segment segment : segments) {
+            segment.close();
+        }
+        segments.clear();
+        directory.delete();
+        discarded = appended;
+    }
+
+    /**
+     * Discards every line and deletes the files for good.  Appending afterwards fails.
+     */
+    void close() {
+        clear();
+        closed = true;
+    }
+
+    /* -- encoding -- */
+
+    private int position;
+
+    private int encode(ConsoleLine line) {
+        // worst case: 3 bytes per char, 5 per count and run value
+        int worst = 5 + line.length() * 3 + 5 + line.runCount() * 10;
+        if (scratch.length < worst) {
+            scratch = new byte[Math.max(worst, scratch.length * 2)];
+        }
+        position = 0;
+        putVarint(line.length());
+        for (int i = 0; i < line.length(); i++) {
+            putVarint(line.text.charAt(i));
+        }
+        putVarint(line.runCount());
+        int previous = 0;
+        for (int run = 0; run < line.runCount(); run++) {
+            putVarint(line.runStart(run) - previous);
+            putVarint(line.runAttributes(run));
+            previous = line.runStart(run);
+        }
+        return position;
+    }
+
+    private void putVarint(int value) {
+        while ((value & ~0x7f) != 0) {
+            scratch[position++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        scratch[position++] = (byte) value;
+    }
+
+    private static ConsoleLine decode(MappedByteBuffer buffer, int offset) {
+        int[] at = {offset};
+        int length = getVarint(buffer, at);
+        if (length == 0) {
+            return ConsoleLine.EMPTY;
+        }
+        char[] text = new char[length];
+        for (int i = 0; i < length; i++) {
+            text[i] = (char) getVarint(buffer, at);
+        }
+        int[] runs = new int[getVarint(buffer, at) * 2];
+        int start = 0;
+        for (int r = 0; r < runs.length; r += 2) {
+            start += getVarint(buffer, at);
+            runs[r] = start;
+            runs[r + 1] = getVarint(buffer, at);
+        }
+        return new ConsoleLine(new String(text), runs);
+    }
+
+    private static int getVarint(MappedByteBuffer buffer, int[] at) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get(at[0]++);
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2019 Eric Lange
+ *
+ * Distributed under the MIT License.  See LICENSE.md at
+ * https://github.com/LiquidPlayer/caraml-console for terms and conditions.
+ */
+package org.liquidplayer.caraml.console;
+
+import java.util.HashMap;
+
+/**
+ * Graphic rendition packed into a single int:
+ *
+ *   bits  0-11  foreground color
+ *   bits 12-23  background color
+ *   bits 24-31  flags (bold, italic, ...)
+ *
+ * A color of 0 means the console's default color; 1 - 256 are indices 0 - 255 into the
+ * xterm 256-color palette; 257 - 4095 are 24-bit colors, interned by rgbColor() in the order
+ * they are first seen.  DEFAULT is plain text in the default colors.
+ */
+final class TextAttributes {
+    private TextAttributes() {
+    }
+
+    static final int DEFAULT = 0;
+    static final int DEFAULT_COLOR = 0;
+
+    private static final int COLOR_MASK = 0xfff;
+    private static final int BACKGROUND_SHIFT = 12;
+
+    static final int BOLD          = 1 << 24;
+    static final int FAINT         = 1 << 25;
+    static final int ITALIC        = 1 << 26;
+    static final int UNDERLINE     = 1 << 27;
+    static final int BLINK         = 1 << 28;
+    static final int NEGATIVE      = 1 << 29;
+    static final int CONCEAL       = 1 << 30;
+    static final int STRIKETHROUGH = 1 << 31;
+
+    private static final int[] ANSI_COLORS = {
+            // normal
+            0xff000000, 0xffcd0000, 0xff00cd00, 0xffcdcd00,
+            0xff0000ee, 0xffcd00cd, 0xff00cdcd, 0xffe5e5e5,
+            // bright
+            0xff7f7f7f, 0xffff0000, 0xff00ff00, 0xffffff00,
+            0xff5c5cff, 0xffff00ff, 0xff00ffff, 0xffffffff,
+    };
+
+    private static final int PALETTE_SIZE = 256;
+    /* Levels of each component in the 6x6x6 color cube */
+    private static final int[] CUBE_LEVELS = {0, 95, 135, 175, 215, 255};
+
+    /* ARGB of each palette color: the 16 ANSI colors, the color cube, then 24 grays */
+    private static final int[] PALETTE = new int[PALETTE_SIZE];
+    static {
+        System.arraycopy(ANSI_COLORS, 0, PALETTE, 0, ANSI_COLORS.length);
+        for (int i = 0; i < 216; i++) {
+            PALETTE[16 + i] = 0xff000000 | (CUBE_LEVELS[i / 36] << 16) |
+                    (CUBE_LEVELS[(i / 6) % 6] << 8) | CUBE_LEVELS[i % 6];
+        }
+        for (int i = 0; i < 24; i++) {
+            int level = 8 + i * 10;
+            PALETTE[232 + i] = 0xff000000 | (level << 16) | (level << 8) | level;
+        }
+    }
+
+    /*
+     * Interned 24-bit colors; packed color 257 + i is RGB[i].  Entries are only ever added, and
+     * a packed color is only read after the write that produced it, under the same lock.
+     */
+    private static final int[] RGB = new int[COLOR_MASK - PALETTE_SIZE];
+    private static int rgbCount = 0;
+    private static final HashMap<Integer, Integer> rgbColors = new HashMap<>();
+
+    static int foreground(int attributes) {
+        return attributes & COLOR_MASK;
+    }
+
+    static int background(int attributes) {
+        return (attributes >>> BACKGROUND_SHIFT) & COLOR_MASK;
+    }
+
+    static int withForeground(int attributes, int color) {
+        return (attributes & ~COLOR_MASK) | color;
+    }
+
+    static int withBackground(int attributes, int color) {
+        return (attributes & ~(COLOR_MASK << BACKGROUND_SHIFT)) | (color << BACKGROUND_SHIFT);
+    }
+
+    /**
+     * Returns the packed color for one of the eight ANSI colors.
+     * @param color AnsiOutputStream.BLACK - AnsiOutputStream.WHITE
+     * @param bright true for the bright (aixterm) variant
+     */
+    static int ansiColor(int color, boolean bright) {
+        return 1 + color + (bright ? 8 : 0);
+    }
+
+    /**
+     * Returns the packed color for an entry in the 256-color palette.
+     * @param index 0 - 255; out of range values are clamped
+     */
+    static int paletteColor(int index) {
+        return 1 + Math.max(0, Math.min(PALETTE_SIZE - 1, index));
+    }
+
+    /**
+     * Returns the packed color for a 24-bit color.  Each distinct color is given its own
+     * packed value until those run out, after which the nearest palette color is used.
+     * @param r red, 0 - 255
+     * @param g green, 0 - 255
+     * @param b blue, 0 - 255
+     */
+    static int rgbColor(int r, int g, int b) {
+        int rgb = ((r & 0xff) << 16) | ((g & 0xff) << 8) | (b & 0xff);
+        synchronized (rgbColors) {
+            Integer color = rgbColors.get(rgb);
+            if (color != null) {
+                return color;
+            }
+            if (rgbCount < RGB.length) {
+                RGB[rgbCount] = 0xff000000 | rgb;
+                color = 1 + PALETTE_SIZE + rgbCount++;
+                rgbColors.put(rgb, color);
+                return color;
+            }
+        }
+        return paletteColor(16 + 36 * cubeLevel(r & 0xff) + 6 * cubeLevel(g & 0xff) +
+                cubeLevel(b & 0xff));
+    }
+
+    /* The color cube level nearest to a component value */
+    private static int cubeLevel(int value) {
+        return value < 48 ? 0 : value < 115 ? 1 : (value - 35) / 40;
+    }
+
+    /**
+     * @return true if 'color' is an interned 24-bit color.  These are numbered in the order
+     * they were first seen in this process, so only their ARGB means anything outside it.
+     */
+    static boolean isRgbColor(int color) {
+        return color > PALETTE_SIZE;
+    }
+
+    /**
+     * Resolves a packed color to ARGB.
+     * @param color a packed color other than DEFAULT_COLOR
+     */
+    static int argb(int color) {
+        return color <= PALETTE_SIZE ? PALETTE[color - 1] : RGB[color - 1 - PALETTE_SIZE];
+    }
+
+    /**
+     * Applies an SGR attribute (one of the AnsiOutputStream.ATTRIBUTE_* values) to 'attributes'.
+     * @return the new attributes
+     */
+    static int withAttribute(int attributes, int attribute) {
+        switch (attribute) {
+            case AnsiOutputStream.ATTRIBUTE_INTENSITY_BOLD:
+                return (attributes | BOLD) & ~FAINT;
+            case AnsiOutputStream.ATTRIBUTE_INTENSITY_FAINT:
+                return (attributes | FAINT) & ~BOLD;
+            case AnsiOutputStream.ATTRIBUTE_INTENSITY_NORMAL:
+                return attributes & ~(BOLD | FAINT);
+            case AnsiOutputStream.ATTRIBUTE_ITALIC:
+                return attributes | ITALIC;
+            case AnsiOutputStream.ATTRIBUTE_ITALIC_OFF:
+                return attributes & ~ITALIC;
+            case AnsiOutputStream.ATTRIBUTE_UNDERLINE:
+            case AnsiOutputStream.ATTRIBUTE_UNDERLINE_DOUBLE:
+                return attributes | UNDERLINE;
+            case AnsiOutputStream.ATTRIBUTE_UNDERLINE_OFF:
+                return attributes & ~UNDERLINE;
+            case AnsiOutputStream.ATTRIBUTE_BLINK_SLOW:
+            case AnsiOutputStream.ATTRIBUTE_BLINK_FAST:
+                return attributes | BLINK;
+            case AnsiOutputStream.ATTRIBUTE_BLINK_OFF:
+                return attributes & ~BLINK;
+            case AnsiOutputStream.ATTRIBUTE_NEGATIVE_ON:
+                return attributes | NEGATIVE;
+            case AnsiOutputStream.ATTRIBUTE_NEGATIVE_Off:
+                return attributes & ~NEGATIVE;
+            case AnsiOutputStream.ATTRIBUTE_CONCEAL_ON:
+                return attributes | CONCEAL;
+            case AnsiOutputStream.ATTRIBUTE_CONCEAL_OFF:
+                return attributes & ~CONCEAL;
+            case AnsiOutputStream.ATTRIBUTE_STRIKETHROUGH:
+                return attributes | STRIKETHROUGH;
+            case AnsiOutputStream.ATTRIBUTE_STRIKETHROUGH_OFF:
+                return attributes & ~STRIKETHROUGH;
+            default:
+                return attributes;
+        }
+    }
+}
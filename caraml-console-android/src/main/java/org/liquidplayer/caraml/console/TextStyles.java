@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2019 Eric Lange
+ *
+ * Distributed under the MIT License.  See LICENSE.md at
+ * https://github.com/LiquidPlayer/caraml-console for terms and conditions.
+ */
+package org.liquidplayer.caraml.console;
+
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.TextPaint;
+import android.text.style.CharacterStyle;
+import android.text.style.UpdateAppearance;
+import android.util.SparseArray;
+
+/**
+ * The text styles for packed graphic renditions (see TextAttributes), made once per rendition
+ * and shared.  A console uses a handful of renditions over and over, so this saves creating
+ * a set of spans for every run of text.
+ *
+ * A span can only be attached to a Spannable once, so append() attaches a thin wrapper around
+ * the shared style to each run.
+ */
+final class TextStyles {
+    /* Renditions beyond this many are not expected; start over rather than grow without bound */
+    private static final int MAX_STYLES = 1024;
+    private static final float ITALIC_SKEW = -0.25f;
+
+    /**
+     * @param defaultForeground ARGB of the default text color
+     * @param defaultBackground ARGB of the default background color
+     */
+    TextStyles(int defaultForeground, int defaultBackground) {
+        this.defaultForeground = defaultForeground;
+        this.defaultBackground = defaultBackground;
+    }
+
+    private final int defaultForeground;
+    private final int defaultBackground;
+    private final SparseArray<CharacterStyle> styles = new SparseArray<>();
+
+    /**
+     * @param attributes a rendition other than TextAttributes.DEFAULT
+     * @return the style for it
+     */
+    CharacterStyle get(int attributes) {
+        CharacterStyle style = styles.get(attributes);
+        if (style == null) {
+            if (styles.size() >= MAX_STYLES) {
+                styles.clear();
+            }
+            style = create(attributes);
+            styles.put(attributes, style);
+        }
+        return style;
+    }
+
+    /**
+     * Appends a line of console history along with its styling.
+     * @param text the text to append to
+     * @param line the line
+     */
+    void append(SpannableStringBuilder text, ConsoleLine line) {
+        int start = text.length();
+        text.append(line.text);
+        for (int run = 0; run < line.runCount(); run++) {
+            int attributes = line.runAttributes(run);
+            if (attributes != TextAttributes.DEFAULT) {
+                text.setSpan(CharacterStyle.wrap(get(attributes)), start + line.runStart(run),
+                        start + line.runEnd(run), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+        }
+    }
+
+    private CharacterStyle create(int attributes) {
+        int foreground = TextAttributes.foreground(attributes);
+        int background = TextAttributes.background(attributes);
+        int fg = foreground == TextAttributes.DEFAULT_COLOR ? 0 : TextAttributes.argb(foreground);
+        int bg = background == TextAttributes.DEFAULT_COLOR ? 0 : TextAttributes.argb(background);
+        if ((attributes & TextAttributes.NEGATIVE) != 0) {
+            int swap = fg;
+            fg = (bg == 0) ? defaultBackground : bg;
+            bg = (swap == 0) ? defaultForeground : swap;
+        }
+        if ((attributes & TextAttributes.CONCEAL) != 0) {
+            fg = (bg == 0) ? defaultBackground : bg;
+        }
+        return new AttributeSpan(fg, bg, attributes);
+    }
+
+    /*
+     * Everything a rendition changes, in one span.  Bold and italic are synthesized, as they
+     * are in ConsoleLinesView, so that the character widths of the monospace font are kept.
+     */
+    private static final class AttributeSpan extends CharacterStyle implements UpdateAppearance {
+        AttributeSpan(int foreground, int background, int attributes) {
+            this.foreground = foreground;
+            this.background = background;
+            this.attributes = attributes;
+        }
+
+        private final int foreground;
+        private final int background;
+        private final int attributes;
+
+        @Override
+        public void updateDrawState(TextPaint tp) {
+            if (foreground != 0) {
+                tp.setColor(foreground);
+            }
+            if (background != 0) {
+                tp.bgColor = background;
+            }
+            if ((attributes & TextAttributes.BOLD) != 0) {
+                tp.setFakeBoldText(true);
+            }
+            if ((attributes & TextAttributes.ITALIC) != 0) {
+                tp.setTextSkewX(ITALIC_SKEW);
+            }
+            if ((attributes & TextAttributes.UNDERLINE) != 0) {
+                tp.setUnderlineText(true);
+            }
+            if ((attributes & TextAttributes.STRIKETHROUGH) != 0) {
+                tp.setStrikeThruText(true);
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2019 Eric Lange
+ *
+ * Distributed under the MIT License.  See LICENSE.md at
+ * https://github.com/LiquidPlayer/caraml-console for terms and conditions.
+ */
+package org.liquidplayer.caraml.console;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Decodes UTF-8 text that arrives in arbitrary chunks.  A multi-byte sequence that is split
+ * across two calls is held back until the rest of it arrives.  Text is decoded into a buffer
+ * that is reused from call to call, so decoding allocates nothing once the buffer has grown
+ * to the size of the largest chunk.
+ */
+final class Utf8Decoder {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final CharsetDecoder decoder = UTF8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private char[] chars = new char[256];
+
+    /* Leading bytes of a sequence that was split across calls */
+    private final byte[] partial = new byte[4];
+    private int partialLength = 0;
+
+    /**
+     * Decodes as much of 'b' as forms complete characters into chars().
+     * @return the number of chars decoded, possibly 0
+     */
+    int decode(byte[] b, int off, int len) {
+        if (partialLength > 0) {
+            byte[] joined = new byte[partialLength + len];
+            System.arraycopy(partial, 0, joined, 0, partialLength);
+            System.arraycopy(b, off, joined, partialLength, len);
+            partialLength = 0;
+            b = joined;
+            off = 0;
+            len = joined.length;
+        }
+        int complete = completeLength(b, off, len);
+        partialLength = len - complete;
+        System.arraycopy(b, off + complete, partial, 0, partialLength);
+        if (complete == 0) return 0;
+        // UTF-8 never decodes to more chars than it has bytes
+        if (chars.length < complete) {
+            chars = new char[Math.max(complete, chars.length * 2)];
+        }
+        CharBuffer out = CharBuffer.wrap(chars);
+        decoder.reset();
+        decoder.decode(ByteBuffer.wrap(b, off, complete), out, true);
+        decoder.flush(out);
+        return out.position();
+    }
+
+    /**
+     * @return the text decoded by the last call to decode(); only valid until the next call
+     */
+    char[] chars() {
+        return chars;
+    }
+
+    /* Returns the length of 'b' without a trailing incomplete UTF-8 sequence */
+    private static int completeLength(byte[] b, int off, int len) {
+        final int end = off + len;
+        for (int i = end - 1; i >= Math.max(off, end - 3); i--) {
+            int c = b[i] & 0xff;
+            if ((c & 0xc0) != 0x80) {
+                int needed = c >= 0xf0 ? 4 : c >= 0xe0 ? 3 : c >= 0xc0 ? 2 : 1;
+                return (end - i < needed) ? i - off : len;
+            }
+        }
+        return len;
+    }
+}
@@ -0,0 +1,142 @@
+package org.liquidplayer.caraml.console;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the ANSI escape sequence parser.
+ */
+public class AnsiOutputStreamTest {
+
+    private static final String SAMPLE =
+            "plain \u001b[1;32mgreen\u001b[0m text\n\u001b[2K\u001b[3Dmore & <less>\r\n" +
+            "\u001b]0;title\u0007done";
+
+    private static String bulk(OutputStream os, ByteArrayOutputStream sink, String in)
+            throws IOException {
+        os.write(in.getBytes("UTF-8"));
+        os.flush();
+        return sink.toString("UTF-8");
+    }
+
+    private static String bytewise(OutputStream os, ByteArrayOutputStream sink, String in)
+            throws IOException {
+        for (byte b : in.getBytes("UTF-8")) {
+            os.write(b);
+        }
+        os.flush();
+        return sink.toString("UTF-8");
+    }
+
+    @Test
+    public void bulkWrite_stripsEscapeSequences() throws IOException {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        String out = bulk(new AnsiOutputStream(sink), sink, SAMPLE);
+        assertEquals("plain green text\nmore & <less>\r\ndone", out);
+    }
+
+    @Test
+    public void bulkWrite_matchesBytewiseWrite() throws IOException {
+        ByteArrayOutputStream sink1 = new ByteArrayOutputStream();
+        ByteArrayOutputStream sink2 = new ByteArrayOutputStream();
+        assertEquals(bytewise(new AnsiOutputStream(sink1), sink1, SAMPLE),
+                bulk(new AnsiOutputStream(sink2), sink2, SAMPLE));
+
+        sink1 = new ByteArrayOutputStream();
+        sink2 = new ByteArrayOutputStream();
+        assertEquals(bytewise(new HtmlAnsiOutputStream(sink1), sink1, SAMPLE),
+                bulk(new HtmlAnsiOutputStream(sink2), sink2, SAMPLE));
+    }
+
+    @Test
+    public void bulkWrite_escapeSequenceSplitAcrossWrites() throws IOException {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        AnsiOutputStream os = new AnsiOutputStream(sink);
+        os.write("abc\u001b[3".getBytes("UTF-8"));
+        os.write("1mdef".getBytes("UTF-8"));
+        assertEquals("abcdef", sink.toString("UTF-8"));
+    }
+
+    @Test
+    public void html_escapesPlainTextOnly() throws IOException {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        String out = bulk(new HtmlAnsiOutputStream(sink), sink, "a <b>\r\n");
+        assertEquals("a&nbsp;&lt;b&gt;<br>", out);
+    }
+
+    @Test
+    public void html_closesOnlyAttributesThatChange() throws IOException {
+        StringBuilder html = new StringBuilder();
+        new HtmlAnsiOutputStream(html).write(
+                "\u001b[1mA\u001b[4mB\u001b[22mC\u001b[31m\u001b[0m\u001b[91mD");
+        assertEquals("<strong>A</strong><strong><u>B</u></strong><u>C</u>" +
+                "<font color=\"#ff0000\">D", html.toString());
+    }
+
+    private static class Recorder extends AnsiOutputStream {
+        final StringBuilder calls = new StringBuilder();
+
+        Recorder() {
+            super(new ByteArrayOutputStream());
+        }
+
+        @Override
+        protected void processCursorTo(int row, int col) {
+            calls.append("H").append(row).append(',').append(col).append(' ');
+        }
+
+        @Override
+        protected void processSetForegroundColor(int color, boolean bright) {
+            calls.append("fg").append(color).append(bright ? "+ " : " ");
+        }
+
+        @Override
+        protected void processAttributeRest() {
+            calls.append("reset ");
+        }
+
+        @Override
+        protected void processUnknownExtension(int[] parameters, int count, int command) {
+            calls.append((char) command).append(count == 0 ? "" : parameters[0]).append(' ');
+        }
+    }
+
+    @Test
+    public void parameters_defaultsAndMarkers() throws IOException {
+        Recorder r = new Recorder();
+        r.write("\u001b[;5H\u001b[12;40f\u001b[H\u001b[31;;92m\u001b[m\u001b[?25l".getBytes("UTF-8"));
+        assertEquals("H1,5 H12,40 H1,1 fg1 fg2+ reset l25 ", r.calls.toString());
+    }
+
+    @Test
+    public void charWrite_matchesByteWrite() throws IOException {
+        String in = SAMPLE + " \u00e9t\u00e9 \u2713 \ud83d\ude00 \u001b]2;t\u00eftle\u0007";
+        ByteArrayOutputStream sink1 = new ByteArrayOutputStream();
+        ByteArrayOutputStream sink2 = new ByteArrayOutputStream();
+        bulk(new AnsiOutputStream(sink1), sink1, in);
+        new AnsiOutputStream(sink2).write(in);
+        assertEquals(sink1.toString("UTF-8"), sink2.toString("UTF-8"));
+
+        sink1 = new ByteArrayOutputStream();
+        StringBuilder html = new StringBuilder();
+        bulk(new HtmlAnsiOutputStream(sink1), sink1, in);
+        new HtmlAnsiOutputStream(html).write(in);
+        assertEquals(sink1.toString("UTF-8"), html.toString());
+    }
+
+    @Test
+    public void html_keepsCharactersSplitAcrossWrites() throws IOException {
+        byte[] bytes = "a\u00e9\u2713".getBytes("UTF-8");
+        StringBuilder html = new StringBuilder();
+        HtmlAnsiOutputStream stream = new HtmlAnsiOutputStream(html);
+        for (byte b : bytes) {
+            stream.write(new byte[] {b}, 0, 1);
+        }
+        assertEquals("a\u00e9\u2713", html.toString());
+    }
+}
@@ -0,0 +1,79 @@
+package org.liquidplayer.caraml.console;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the console command queue.
+ */
+public class CommandQueueTest {
+
+    private static class Recorder implements CommandQueue.Scheduler, CommandQueue.Evaluator {
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        final List<String> calls = new ArrayList<>();
+
+        @Override
+        public void schedule(Runnable task) {
+            tasks.add(task);
+        }
+
+        @Override
+        public void evaluate(String command) {
+            calls.add(command);
+        }
+
+        @Override
+        public void onTimeout(String command) {
+            calls.add("timeout " + command);
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+
+    @Test
+    public void submit_evaluatesOneAtATimeInOrder() {
+        Recorder recorder = new Recorder();
+        CommandQueue queue = new CommandQueue(recorder, recorder);
+        queue.submit("a");
+        queue.submit("b");
+        queue.submit("c");
+        assertEquals(1, recorder.tasks.size());
+        assertEquals(3, queue.getPending());
+
+        recorder.runAll();
+        assertEquals(Arrays.asList("a", "b", "c"), recorder.calls);
+        assertEquals(0, queue.getPending());
+
+        queue.submit("d");
+        recorder.runAll();
+        assertEquals("d", recorder.calls.get(3));
+    }
+
+    @Test
+    public void cancelAndTimeout_dropWaitingCommands() throws InterruptedException {
+        Recorder recorder = new Recorder();
+        CommandQueue queue = new CommandQueue(recorder, recorder);
+        queue.submit("a");
+        queue.submit("b");
+        assertEquals(2, queue.cancel());
+        recorder.runAll();
+        assertTrue(recorder.calls.isEmpty());
+
+        queue.setTimeout(1);
+        queue.submit("c");
+        Thread.sleep(20);
+        recorder.runAll();
+        assertEquals(Arrays.asList("timeout c"), recorder.calls);
+    }
+}
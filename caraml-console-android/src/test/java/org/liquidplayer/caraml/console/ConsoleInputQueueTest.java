@@ -0,0 +1,163 @@
+package org.liquidplayer.caraml.console;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the output hand-off queue.
+ */
+public class ConsoleInputQueueTest {
+
+    @Test
+    public void poll_drainsEveryProducerInOrder() throws InterruptedException {
+        final ConsoleInputQueue queue = new ConsoleInputQueue();
+        final int producers = 4;
+        final int chunks = 20000;
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final char id = (char) ('a' + p);
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < chunks; i++) {
+                        queue.offer(id + Integer.toString(i % 10));
+                    }
+                }
+            });
+            threads[p].start();
+        }
+
+        int[] next = new int[producers];
+        int received = 0;
+        while (received < producers * chunks) {
+            int length = queue.poll();
+            if (length == 0) {
+                Thread.yield();
+                continue;
+            }
+            char[] buffer = queue.buffer();
+            assertEquals(0, length % 2);
+            for (int i = 0; i < length; i += 2) {
+                int p = buffer[i] - 'a';
+                assertEquals(next[p] % 10, buffer[i + 1] - '0');
+                next[p]++;
+                received++;
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int p = 0; p < producers; p++) {
+            assertEquals(chunks, next[p]);
+        }
+    }
+
+    private static String drain(ConsoleInputQueue queue) {
+        int length = queue.poll();
+        return new String(queue.buffer(), 0, length);
+    }
+
+    @Test
+    public void overflow_dropNewest() {
+        ConsoleInputQueue queue = new ConsoleInputQueue();
+        queue.setOverflowPolicy(8, ConsoleInputQueue.OverflowPolicy.DROP_NEWEST);
+        assertTrue(queue.offer("1234"));
+        assertTrue(queue.offer("5678"));
+        assertFalse(queue.offer("9"));
+        assertEquals(1, queue.takeDropped());
+        assertEquals("12345678", drain(queue));
+        assertTrue(queue.offer("9"));
+    }
+
+    @Test
+    public void overflow_dropOldest() {
+        ConsoleInputQueue queue = new ConsoleInputQueue();
+        queue.setOverflowPolicy(8, ConsoleInputQueue.OverflowPolicy.DROP_OLDEST);
+        queue.offer("1234");
+        queue.offer("5678");
+        assertTrue(queue.offer("9"));
+        assertEquals(4, queue.takeDropped());
+        assertEquals("56789", drain(queue));
+    }
+
+    @Test
+    public void overflow_collapseLeavesMarker() {
+        ConsoleInputQueue queue = new ConsoleInputQueue();
+        queue.setOverflowPolicy(8, ConsoleInputQueue.OverflowPolicy.COLLAPSE);
+        queue.offer("1234");
+        queue.offer("5678");
+        queue.offer("abc");
+        queue.offer("de");
+        assertEquals("12345678[5 bytes skipped]\n", drain(queue));
+    }
+
+    @Test
+    public void overflow_letsOversizedChunkIntoEmptyQueue() {
+        for (ConsoleInputQueue.OverflowPolicy policy : ConsoleInputQueue.OverflowPolicy.values()) {
+            ConsoleInputQueue queue = new ConsoleInputQueue();
+            queue.setOverflowPolicy(4, policy);
+            assertTrue(queue.offer("123456"));
+            assertEquals(0, queue.takeDropped());
+            assertEquals("123456", drain(queue));
+        }
+    }
+
+    @Test
+    public void overflow_collapseMarkerIsPendingOutput() {
+        ConsoleInputQueue queue = new ConsoleInputQueue();
+        queue.setOverflowPolicy(4, ConsoleInputQueue.OverflowPolicy.COLLAPSE);
+        queue.offer("1234");
+        assertFalse(queue.offer("5"));
+        assertEquals("1234[1 bytes skipped]\n", drain(queue));
+        assertTrue(queue.isEmpty());
+
+        queue.offer("1234");
+        assertFalse(queue.offer("5"));
+        queue.clear();
+        queue.offer("6");
+        assertEquals("6", drain(queue));
+    }
+
+    @Test(timeout = 5000)
+    public void overflow_blockWaitsForConsumer() throws InterruptedException {
+        final ConsoleInputQueue queue = new ConsoleInputQueue();
+        queue.setOverflowPolicy(4, ConsoleInputQueue.OverflowPolicy.BLOCK);
+        queue.offer("1234");
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                assertTrue(queue.offer("5678"));
+            }
+        });
+        writer.start();
+        assertEquals("1234", drain(queue));
+        writer.join();
+        assertEquals("5678", drain(queue));
+        assertEquals(0, queue.takeDropped());
+    }
+
+    @Test
+    public void clear_discardsQueuedOutput() {
+        ConsoleInputQueue queue = new ConsoleInputQueue();
+        queue.offer("a");
+        queue.offer("b");
+
+        queue.clear();
+        assertEquals(0, queue.poll());
+        assertEquals(0, queue.getPending());
+        assertTrue(queue.isEmpty());
+        queue.offer("d");
+        assertEquals("d", drain(queue));
+    }
+
+    @Test(timeout = 5000)
+    public void put_ignoresTheCap() {
+        ConsoleInputQueue queue = new ConsoleInputQueue();
+        queue.setOverflowPolicy(4, ConsoleInputQueue.OverflowPolicy.BLOCK);
+        queue.offer("1234");
+        queue.put("> cmd\n");
+        assertEquals(0, queue.takeDropped());
+        assertEquals("1234> cmd\n", drain(queue));
+    }
+}
@@ -0,0 +1,92 @@
+package org.liquidplayer.caraml.console;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the console output log.
+ */
+public class ConsoleLogTest {
+
+    private static String read(File file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0) out.write(buffer, 0, n);
+        } finally {
+            in.close();
+        }
+        return out.toString("UTF-8");
+    }
+
+    @Test
+    public void write_stripsEscapesAndRotates() throws Exception {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "console-log-test");
+        File file = new File(directory, "out.log");
+        for (int i = 0; i < 3; i++) {
+            new File(file.getPath() + (i == 0 ? "" : "." + i)).delete();
+        }
+        ConsoleLog log = new ConsoleLog(file, 8, 2, true);
+
+        char[] chars = "\u001b[31mfirst\u001b[0m \u00e9\n".toCharArray();
+        log.write(chars, 0, chars.length);
+        for (int i = 0; i < 100 && file.length() < 8; i++) Thread.sleep(10);
+        assertEquals("first \u00e9\n", read(file));
+
+        chars = "\u001b]0;title\u0007second\n".toCharArray();
+        log.write(chars, 0, chars.length);
+        File rotated = new File(file.getPath() + ".1");
+        for (int i = 0; i < 100 && !rotated.exists(); i++) Thread.sleep(10);
+        for (int i = 0; i < 100 && file.length() < 7; i++) Thread.sleep(10);
+        assertEquals("first \u00e9\n", read(rotated));
+        assertEquals("second\n", read(file));
+        assertFalse(new File(file.getPath() + ".2").exists());
+    }
+
+    @Test
+    public void close_keepsQueuedOutputAndReopens() throws Exception {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "console-log-test");
+        File file = new File(directory, "close.log");
+        file.delete();
+        ConsoleLog log = new ConsoleLog(file, 1024, 1, false);
+
+        char[] chars = "before\n".toCharArray();
+        log.write(chars, 0, chars.length);
+        log.close();
+        chars = "after\n".toCharArray();
+        log.write(chars, 0, chars.length);
+        for (int i = 0; i < 100 && file.length() < 13; i++) Thread.sleep(10);
+        assertEquals("before\nafter\n", read(file));
+    }
+
+    @Test
+    public void write_marksOutputLeftOutWhereItWasLeftOut() throws Exception {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "console-log-test");
+        File file = new File(directory, "gap.log");
+        file.delete();
+        ConsoleLog log = new ConsoleLog(file, 1024 * 1024, 1, false);
+
+        char[] before = "before\n".toCharArray();
+        log.write(before, 0, before.length);
+        char[] flood = new char[5 * 1024 * 1024];
+        log.write(flood, 0, flood.length);
+        char[] after = "after\n".toCharArray();
+        log.write(after, 0, after.length);
+        log.write(flood, 0, flood.length);
+        log.close();
+
+        String expected = "before\n\n[" + flood.length + " bytes not logged]\nafter\n" +
+                "\n[" + flood.length + " bytes not logged]\n";
+        for (int i = 0; i < 100 && file.length() < expected.length(); i++) Thread.sleep(10);
+        assertEquals(expected, read(file));
+    }
+}
@@ -0,0 +1,245 @@
+package org.liquidplayer.caraml.console;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the console text model.
+ */
+public class ConsoleOutputStreamTest {
+
+    private static ConsoleOutputStream console(int columns, int rows) {
+        ConsoleOutputStream stream = new ConsoleOutputStream(null);
+        stream.resize(columns, rows);
+        return stream;
+    }
+
+    private static String row(ConsoleScreen screen, int row) {
+        StringBuilder sb = new StringBuilder();
+        for (int column = 0; column < screen.getLength(row); column++) {
+            int codePoint = screen.getCodePoint(row, column);
+            sb.appendCodePoint(codePoint == 0 ? ' ' : codePoint);
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void cursorTo_isRelativeToScreen() throws IOException {
+        ConsoleOutputStream stream = console(10, 3);
+        stream.write("one\ntwo\nthree\nfour\u001b[1;2HX\u001b[3;1H\u001b[2K");
+        ConsoleScreen screen = stream.getScreen();
+        assertEquals(1, stream.getScrollback().size());
+        assertEquals("one", stream.getScrollback().get(0).text);
+        assertEquals("tXo", row(screen, 0));
+        assertEquals("three", row(screen, 1));
+        assertEquals("", row(screen, 2));
+    }
+
+    @Test
+    public void wrappedRows_joinInScrollback() throws IOException {
+        ConsoleOutputStream stream = console(4, 2);
+        stream.write("abcdefgh\nxy\nz");
+        assertEquals(1, stream.getScrollback().size());
+        assertEquals("abcdefgh", stream.getScrollback().get(0).text);
+        assertEquals("xy", row(stream.getScreen(), 0));
+        assertEquals("z", row(stream.getScreen(), 1));
+    }
+
+    @Test
+    public void attributes_areRunLengthEncoded() throws IOException {
+        ConsoleOutputStream stream = console(20, 1);
+        stream.write("a\u001b[1;31mbc\u001b[0md\n");
+        ConsoleLine line = stream.getScrollback().get(0);
+        assertEquals("abcd", line.text);
+        assertEquals(3, line.runCount());
+        assertEquals(1, line.runStart(1));
+        assertEquals(3, line.runEnd(1));
+        int bold = line.runAttributes(1);
+        assertTrue((bold & TextAttributes.BOLD) != 0);
+        assertEquals(TextAttributes.ansiColor(AnsiOutputStream.RED, false),
+                TextAttributes.foreground(bold));
+        assertEquals(TextAttributes.DEFAULT, line.runAttributes(2));
+    }
+
+    @Test
+    public void eraseScrollback_bumpsGeneration() throws IOException {
+        ConsoleOutputStream stream = console(10, 1);
+        stream.write("one\ntwo\n");
+        int generation = stream.getScrollbackGeneration();
+        stream.write("\u001b[3J");
+        assertEquals(0, stream.getScrollback().size());
+        assertNotEquals(generation, stream.getScrollbackGeneration());
+    }
+
+    @Test
+    public void scrollback_evictsOldestLines() throws IOException {
+        ConsoleOutputStream stream = console(10, 1);
+        stream.setMaxScrollbackLines(3);
+        for (int i = 0; i < 10; i++) {
+            stream.write("line " + i + "\n");
+        }
+        ScrollbackBuffer scrollback = stream.getScrollback();
+        assertEquals(3, scrollback.size());
+        assertEquals(10, scrollback.getLineCount());
+        assertEquals(7, scrollback.getFirstLineNumber());
+        assertEquals("line 7", scrollback.get(0).text);
+        assertEquals("line 9", scrollback.get(2).text);
+
+        stream.setMaxScrollbackLines(2);
+        assertEquals("line 8", scrollback.get(0).text);
+    }
+
+    @Test
+    public void scrollback_spillsColdLinesToFile() throws IOException {
+        File root = new File(System.getProperty("java.io.tmpdir"), "scrollback-spill-test");
+        ConsoleOutputStream stream = console(10, 1);
+        stream.setMaxScrollbackLines(1000);
+        stream.setScrollbackSpill(new ScrollbackSpill(root), 4);
+        for (int i = 0; i < 1200; i++) {
+            stream.write("\u001b[3" + (i % 8) + "mline " + i + "\u00e9\n");
+        }
+        ScrollbackBuffer scrollback = stream.getScrollback();
+        assertEquals(1000, scrollback.size());
+        assertEquals(996, scrollback.getHotStart());
+        assertEquals(200, scrollback.getFirstLineNumber());
+        for (int i = 0; i < scrollback.size(); i++) {
+            ConsoleLine line = scrollback.get(i);
+            assertEquals("line " + (200 + i) + "\u00e9", line.text);
+            if (i >= 8) {
+                // same color as 8 lines earlier, and not the previous line's
+                assertEquals(scrollback.get(i - 8).runAttributes(0), line.runAttributes(0));
+                assertNotEquals(scrollback.get(i - 1).runAttributes(0), line.runAttributes(0));
+            }
+        }
+
+        // dropping the spill closes it, deleting its files along with the lines in it
+        stream.setScrollbackSpill(null, 0);
+        assertEquals(4, scrollback.size());
+        assertEquals("line 1196\u00e9", scrollback.get(0).text);
+        assertEquals(0, root.list().length);
+    }
+
+    @Test
+    public void saveCursor_keepsOnePosition() throws IOException {
+        ConsoleOutputStream stream = console(10, 3);
+        stream.write("ab\u001b[s\u001b[3;1Hc\u001b[2;5H\u001b[s\u001b[uX\u001b[3;9H\u001b[uY");
+        ConsoleScreen screen = stream.getScreen();
+        assertEquals("ab", row(screen, 0));
+        assertEquals("    Y", row(screen, 1));
+        assertEquals("c", row(screen, 2));
+    }
+
+    @Test
+    public void carriageReturn_overwritesRow() throws IOException {
+        ConsoleOutputStream stream = console(20, 2);
+        for (int i = 0; i <= 1000; i++) {
+            stream.write("\r" + (i / 10) + "% [" + (i % 2 == 0 ? "=" : "-") + "]");
+        }
+        stream.write("\rdone\r\n");
+        assertEquals(0, stream.getScrollback().size());
+        assertEquals("done [=]", row(stream.getScreen(), 0));
+        assertEquals(1, stream.getScreen().getCursorRow());
+        assertEquals(0, stream.getScreen().getCursorColumn());
+    }
+
+    @Test
+    public void extendedColors_arePacked() throws IOException {
+        ConsoleOutputStream stream = console(20, 1);
+        stream.write("\u001b[38;5;196;1ma\u001b[48;2;1;2;3mb\u001b[38;2;1;2;3;48;5;232mc\n");
+        ConsoleLine line = stream.getScrollback().get(0);
+        int a = line.runAttributes(0);
+        assertEquals(0xffff0000, TextAttributes.argb(TextAttributes.foreground(a)));
+        assertTrue((a & TextAttributes.BOLD) != 0);
+        int b = line.runAttributes(1);
+        assertEquals(TextAttributes.foreground(a), TextAttributes.foreground(b));
+        assertEquals(0xff010203, TextAttributes.argb(TextAttributes.background(b)));
+        int c = line.runAttributes(2);
+        assertEquals(TextAttributes.background(b), TextAttributes.foreground(c));
+        assertEquals(0xff080808, TextAttributes.argb(TextAttributes.background(c)));
+    }
+
+    @Test
+    public void snapshot_roundTripsThroughBytes() throws IOException {
+        ConsoleOutputStream stream = console(4, 2);
+        stream.write("\u001b[31mred\u001b[0m\nabcdefgh\nlast");
+        ConsoleSnapshot snapshot = ConsoleSnapshot.take(stream, Arrays.asList("1+1"), 1);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        snapshot.writeTo(out, true);
+        ConsoleSnapshot read = ConsoleSnapshot.readFrom(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(Arrays.asList("1+1"), read.commands);
+        assertEquals(1, read.item);
+
+        ConsoleOutputStream restored = console(4, 2);
+        read.restore(restored);
+        ScrollbackBuffer scrollback = restored.getScrollback();
+        assertEquals(1, scrollback.size());
+        assertEquals("red", scrollback.get(0).text);
+        assertEquals(stream.getScrollback().get(0).runAttributes(0),
+                scrollback.get(0).runAttributes(0));
+        assertNotEquals(TextAttributes.DEFAULT, scrollback.get(0).runAttributes(0));
+        assertEquals("abcd", restored.getPendingLine().text);
+        assertEquals("efgh", row(restored.getScreen(), 0));
+        assertEquals("last", row(restored.getScreen(), 1));
+    }
+
+    @Test
+    public void snapshot_keepsRgbColorsByValue() throws IOException {
+        ConsoleOutputStream stream = console(10, 1);
+        stream.write("\u001b[38;2;12;34;56;48;2;78;90;123mrgb\u001b[0m\nnext");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ConsoleSnapshot.take(stream, Arrays.<String>asList(), 0).writeTo(out, false);
+
+        ConsoleOutputStream restored = console(10, 1);
+        ConsoleSnapshot.readFrom(new ByteArrayInputStream(out.toByteArray())).restore(restored);
+        int a = restored.getScrollback().get(0).runAttributes(0);
+        assertEquals(0xff0c2238, TextAttributes.argb(TextAttributes.foreground(a)));
+        assertEquals(0xff4e5a7b, TextAttributes.argb(TextAttributes.background(a)));
+    }
+
+    @Test
+    public void snapshot_goesInFrontOfOutputPrintedSinceRestart() throws IOException {
+        ConsoleOutputStream stream = console(4, 2);
+        stream.write("old\nabcdefgh");
+        ConsoleSnapshot snapshot = ConsoleSnapshot.take(stream, Arrays.<String>asList(), 0);
+
+        ConsoleOutputStream restarted = console(4, 1);
+        restarted.write("new\nx");
+        snapshot.restore(restarted);
+        ScrollbackBuffer scrollback = restarted.getScrollback();
+        assertEquals(3, scrollback.size());
+        assertEquals("old", scrollback.get(0).text);
+        assertEquals("abcdefgh", scrollback.get(1).text);
+        assertEquals("new", scrollback.get(2).text);
+        assertEquals("x", row(restarted.getScreen(), 0));
+    }
+
+    @Test(expected = IOException.class)
+    public void snapshot_rejectsCorruptLengths() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ConsoleSnapshot.take(console(4, 2), Arrays.<String>asList(), 0).writeTo(out, false);
+        byte[] bytes = out.toByteArray();
+        // the history line count, just after the header
+        bytes[12] = (byte) 0x7f;
+        ConsoleSnapshot.readFrom(new ByteArrayInputStream(bytes));
+    }
+
+    @Test(expected = IOException.class)
+    public void snapshot_rejectsRunsOutsideTheirLine() throws IOException {
+        ConsoleOutputStream stream = console(4, 1);
+        stream.write("\u001b[31mred\u001b[0m\n");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ConsoleSnapshot.take(stream, Arrays.<String>asList(), 0).writeTo(out, false);
+        byte[] bytes = out.toByteArray();
+        // header, line count, text length, "red" as UTF-16, run count, then the run's start
+        bytes[12 + 4 + 4 + 6 + 4] = (byte) 0x7f;
+        ConsoleSnapshot.readFrom(new ByteArrayInputStream(bytes));
+    }
+}
@@ -0,0 +1,124 @@
+package org.liquidplayer.caraml.console;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for console sessions sharing the parser threads.
+ */
+public class ConsoleTerminalTest {
+
+    private static String lastLine(ConsoleTerminal terminal) {
+        synchronized (terminal.stream.lock) {
+            ScrollbackBuffer scrollback = terminal.stream.getScrollback();
+            return scrollback.size() == 0 ? "" : scrollback.get(scrollback.size() - 1).text;
+        }
+    }
+
+    @Test
+    public void print_keepsEachSessionInOrder() throws InterruptedException {
+        final int sessions = 8;
+        final int lines = 2000;
+        final ConsoleTerminal[] terminals = new ConsoleTerminal[sessions];
+        Thread[] writers = new Thread[sessions];
+        for (int s = 0; s < sessions; s++) {
+            final ConsoleTerminal terminal = terminals[s] = new ConsoleTerminal();
+            terminal.setMaxScrollbackLines(0);
+            terminal.setConsoleSize(80, 1);
+            writers[s] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < lines; i++) {
+                        terminal.println(Integer.toString(i));
+                    }
+                }
+            });
+            writers[s].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        for (ConsoleTerminal terminal : terminals) {
+            while (!lastLine(terminal).equals(Integer.toString(lines - 1)) &&
+                    System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            synchronized (terminal.stream.lock) {
+                ScrollbackBuffer scrollback = terminal.stream.getScrollback();
+                assertEquals(lines, scrollback.size());
+                for (int i = 0; i < scrollback.size(); i++) {
+                    assertEquals(Integer.toString(i), scrollback.get(i).text);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void stats_countParsedOutputAndLatency() throws InterruptedException {
+        ConsoleTerminal terminal = new ConsoleTerminal();
+        terminal.print("\u001b[1mbold\u001b[0m\n");
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (terminal.getStats().bytesParsed < 13 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        long latency;
+        synchronized (terminal.stream.lock) {
+            latency = terminal.takeDisplayLatency();
+        }
+        assertTrue(latency >= 0);
+        terminal.recordRender(1000, latency);
+
+        ConsoleStats stats = terminal.getStats();
+        assertEquals(13, stats.bytesParsed);
+        assertEquals(2, stats.escapeSequences);
+        assertEquals(0, stats.pendingBytes);
+        assertEquals(1, stats.renders);
+        long updates = 0;
+        for (long count : stats.latencyHistogram) updates += count;
+        assertEquals(1, updates);
+        synchronized (terminal.stream.lock) {
+            assertEquals(-1, terminal.takeDisplayLatency());
+        }
+    }
+
+    @Test
+    public void tracing_recordsSections() throws InterruptedException {
+        ConsoleTracing.Recording recording = new ConsoleTracing.Recording();
+        ConsoleTracing.setTracer(recording);
+        try {
+            ConsoleTerminal terminal = new ConsoleTerminal();
+            terminal.print("\u001b[2;3Hx\u001b[HY");
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (recording.getCount(ConsoleTracing.SECTION_CURSOR_TO) < 2 &&
+                    System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            // the tracer is global, so terminals left over from other tests may add sections
+            assertTrue(recording.getCount(ConsoleTracing.SECTION_DRAIN) >= 1);
+            assertTrue(recording.getCount(ConsoleTracing.SECTION_FLUSH) >= 1);
+            assertEquals(2, recording.getCount(ConsoleTracing.SECTION_CURSOR_TO));
+        } finally {
+            ConsoleTracing.setTracer(null);
+        }
+    }
+
+    @Test
+    public void release_parsesOutputPrintedBeforeIt() throws InterruptedException {
+        ConsoleTerminal terminal = new ConsoleTerminal();
+        terminal.setConsoleSize(80, 1);
+        for (int i = 0; i < 1000; i++) {
+            terminal.println(Integer.toString(i));
+        }
+        terminal.release();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!lastLine(terminal).equals("999") && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("999", lastLine(terminal));
+    }
+}
@@ -0,0 +1,38 @@
+package org.liquidplayer.caraml.console;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the line-start index.
+ */
+public class LineIndexTest {
+
+    @Test
+    public void lineAt_findsContainingLine() {
+        LineIndex index = new LineIndex();
+        index.addLines("one\ntwo\n\nfour", 0);
+        assertEquals(4, index.size());
+        assertEquals(8, index.start(2));
+        assertEquals(0, index.lineAt(0));
+        assertEquals(0, index.lineAt(3));
+        assertEquals(1, index.lineAt(4));
+        assertEquals(2, index.lineAt(8));
+        assertEquals(3, index.lineAt(100));
+    }
+
+    @Test
+    public void removeFirst_rebasesOffsets() {
+        LineIndex index = new LineIndex();
+        for (int i = 0; i < 1000; i++) {
+            index.add(i * 10);
+        }
+        index.removeFirst(990);
+        assertEquals(10, index.size());
+        assertEquals(0, index.start(0));
+        assertEquals(90, index.start(9));
+        index.add(100);
+        assertEquals(10, index.lineAt(105));
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2019 Eric Lange
+ *
+ * Distributed under the MIT License.  See LICENSE.md at
+ * https://github.com/LiquidPlayer/caraml-console for terms and conditions.
+ */
+package org.liquidplayer.caraml.console;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the escape sequence parser on its own, i.e. with a sink that discards
+ * everything.  Each invocation parses one whole corpus.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AnsiOutputStreamBenchmark {
+
+    @Param({Corpus.NPM_INSTALL, Corpus.MOCHA, Corpus.JEST, Corpus.PROGRESS, Corpus.TUI_REDRAW})
+    public String corpus;
+
+    private byte[][] chunks;
+    private String text;
+    private Corpus.CountingOutputStream sink;
+    private AnsiOutputStream stream;
+
+    @Setup
+    public void setup() throws IOException {
+        chunks = Corpus.chunks(Corpus.bytes(corpus), 4096);
+        text = Corpus.string(corpus);
+        sink = new Corpus.CountingOutputStream();
+        stream = new AnsiOutputStream(sink);
+    }
+
+    @Benchmark
+    public long bulkWrite() throws IOException {
+        for (byte[] chunk : chunks) {
+            stream.write(chunk, 0, chunk.length);
+        }
+        return sink.count;
+    }
+
+    @Benchmark
+    public long byteWrite() throws IOException {
+        for (byte[] chunk : chunks) {
+            for (byte b : chunk) {
+                stream.write(b);
+            }
+        }
+        return sink.count;
+    }
+
+    @Benchmark
+    public long charWrite() throws IOException {
+        stream.write(text);
+        return sink.count;
+    }
+}
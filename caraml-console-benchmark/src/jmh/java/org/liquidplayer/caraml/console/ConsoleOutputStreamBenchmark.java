@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2019 Eric Lange
+ *
+ * Distributed under the MIT License.  See LICENSE.md at
+ * https://github.com/LiquidPlayer/caraml-console for terms and conditions.
+ */
+package org.liquidplayer.caraml.console;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of applying output to the console text model: appending, cursor addressing and
+ * erasing.  The cursor benchmarks run against a model that already holds a deep history,
+ * since that is where addressing used to get expensive.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ConsoleOutputStreamBenchmark {
+
+    @Param({Corpus.NPM_INSTALL, Corpus.MOCHA, Corpus.JEST, Corpus.PROGRESS, Corpus.TUI_REDRAW})
+    public String corpus;
+
+    private static final int HISTORY_LINES = 10000;
+
+    private byte[][] chunks;
+    private ConsoleOutputStream stream;
+    private ConsoleOutputStream deep;
+
+    @Setup
+    public void setup() throws IOException {
+        chunks = Corpus.chunks(Corpus.bytes(corpus), 4096);
+        stream = new ConsoleOutputStream(null);
+        deep = new ConsoleOutputStream(null);
+        for (int i = 0; i < HISTORY_LINES; i++) {
+            deep.write("history line " + i + "\n");
+        }
+    }
+
+    @Benchmark
+    public int append() throws IOException {
+        for (byte[] chunk : chunks) {
+            stream.write(chunk, 0, chunk.length);
+        }
+        return stream.getScreen().getCursorRow();
+    }
+
+    @Benchmark
+    public int cursorMove() throws IOException {
+        deep.write("\u001b[12;40H\u001b[5A\u001b[3C\u001b[s\u001b[20;1H\u001b[u");
+        return deep.getScreen().getCursorColumn();
+    }
+
+    @Benchmark
+    public int eraseLine() throws IOException {
+        deep.write("\u001b[10;1Hprogress 42%\u001b[K\u001b[1K\u001b[2K");
+        return deep.getScreen().getCursorColumn();
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2019 Eric Lange
+ *
+ * Distributed under the MIT License.  See LICENSE.md at
+ * https://github.com/LiquidPlayer/caraml-console for terms and conditions.
+ */
+package org.liquidplayer.caraml.console;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Recorded console output bundled with the benchmarks.
+ *
+ * npm-install: spinner redrawn with \r and ESC[K, interleaved with warnings
+ * mocha:       spec reporter output, SGR on nearly every token
+ * jest:        PASS/FAIL badges with stacked SGR attributes and failure diffs
+ * progress:    \r progress bars as written by curl/webpack-like tools
+ * tui-redraw:  listr/ora-style redraw of a task list with ESC[1A ESC[2K
+ */
+final class Corpus {
+    static final String NPM_INSTALL = "npm-install";
+    static final String MOCHA = "mocha";
+    static final String JEST = "jest";
+    static final String PROGRESS = "progress";
+    static final String TUI_REDRAW = "tui-redraw";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private Corpus() {
+    }
+
+    static byte[] bytes(String name) throws IOException {
+        InputStream in = Corpus.class.getResourceAsStream("/corpus/" + name + ".txt");
+        if (in == null) {
+            throw new IOException("No such corpus: " + name);
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    static String string(String name) throws IOException {
+        return new String(bytes(name), UTF8);
+    }
+
+    /**
+     * Splits 'data' into chunks of roughly the size the console thread sees in practice.
+     */
+    static byte[][] chunks(byte[] data, int size) {
+        int count = (data.length + size - 1) / size;
+        byte[][] chunks = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            int start = i * size;
+            int len = Math.min(size, data.length - start);
+            chunks[i] = new byte[len];
+            System.arraycopy(data, start, chunks[i], 0, len);
+        }
+        return chunks;
+    }
+
+    /**
+     * An OutputStream that only counts what is written to it, so that the benchmarks measure
+     * the parser and not the sink.
+     */
+    static final class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
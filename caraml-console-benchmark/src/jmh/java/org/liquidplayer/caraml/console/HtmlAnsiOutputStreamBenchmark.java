@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2019 Eric Lange
+ *
+ * Distributed under the MIT License.  See LICENSE.md at
+ * https://github.com/LiquidPlayer/caraml-console for terms and conditions.
+ */
+package org.liquidplayer.caraml.console;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of rendering a corpus to HTML, both as bytes and into a StringBuilder.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HtmlAnsiOutputStreamBenchmark {
+
+    @Param({Corpus.NPM_INSTALL, Corpus.MOCHA, Corpus.JEST, Corpus.PROGRESS, Corpus.TUI_REDRAW})
+    public String corpus;
+
+    private byte[][] chunks;
+    private String text;
+    private ByteArrayOutputStream bytes;
+    private HtmlAnsiOutputStream byteStream;
+    private StringBuilder html;
+    private HtmlAnsiOutputStream charStream;
+
+    @Setup
+    public void setup() throws IOException {
+        chunks = Corpus.chunks(Corpus.bytes(corpus), 4096);
+        text = Corpus.string(corpus);
+        bytes = new ByteArrayOutputStream();
+        byteStream = new HtmlAnsiOutputStream(bytes);
+        html = new StringBuilder();
+        charStream = new HtmlAnsiOutputStream(html);
+    }
+
+    @Benchmark
+    public int bytes() throws IOException {
+        bytes.reset();
+        for (byte[] chunk : chunks) {
+            byteStream.write(chunk, 0, chunk.length);
+        }
+        return bytes.size();
+    }
+
+    @Benchmark
+    public int chars() throws IOException {
+        html.setLength(0);
+        charStream.write(text);
+        return html.length();
+    }
+}
@@ -63,6 +63,22 @@ class Console extends events {
    @param {string} [opts.textColor] - An html-like description of text color, e.g. 'black' or '#ed5616'
    @param {string} [opts.backgroundColor] - An html-like description of background color
    @param {number} [opts.fontSize]  - A floating-point font point size
+   @param {number} [opts.maxScrollbackLines] - The most lines of history to keep (default 10000, 0 for no limit)
+   @param {number} [opts.hotScrollbackLines] - The most lines of history to keep on the heap; older lines are paged
+                                               out to memory-mapped files. Ignored unless virtualized is set
+                                               (default 0, keep all on the heap)
+   @param {number} [opts.maxFramesPerSecond] - The most display refreshes per second (default 0, every frame)
+   @param {boolean} [opts.virtualized] - Only draw the lines on screen; use for very long scrollback (default false)
+   @param {number} [opts.maxPendingBytes] - The most output that may wait to be displayed (default 0, no limit)
+   @param {string} [opts.overflowPolicy] - What to do with output beyond maxPendingBytes: 'block', 'dropOldest',
+                                           'dropNewest' or 'collapse' to a "[N bytes skipped]" marker (default 'block')
+   @param {number} [opts.commandTimeout] - Milliseconds a command entered in the console may wait to run before it
+                                           is dropped (default 0, no limit)
+   @param {string} [opts.logFile] - Also write all output to this file, relative to the app's caraml-console-logs
+                                    files directory unless absolute (default none)
+   @param {number} [opts.logMaxBytes] - Size at which the log file is rotated (default 1048576)
+   @param {number} [opts.logMaxFiles] - The most log files to keep, including the current one (default 5)
+   @param {boolean} [opts.logStripAnsi] - Leave escape sequences out of the log (default false)
    @param {Console#Transform} [opts.transformStdout] - A function to transform output string being sent to stdout
    @param {Console#Transform} [opts.transformStderr] - A function to transform output strings being sent to stderr
    */
@@ -78,6 +94,38 @@ class Console extends events {
     let oldStdout = {}
     let oldStderr = {}
 
+    // Output is batched and handed to the native console once per event loop turn (or sooner
+    // if a lot has built up), so that the cost of crossing into native code scales with
+    // turns rather than with the number of writes.
+    const BATCH_LENGTH = 16 * 1024
+    let batch = []
+    let batchLength = 0
+    let batchScheduled = false
+
+    const flushBatch = () => {
+      batchScheduled = false
+      if (batch.length > 0) {
+        let chunks = batch
+        batch = []
+        batchLength = 0
+        c.write(chunks.join(''))
+      }
+    }
+    // output written just before a synchronous exit would otherwise never be flushed
+    process.on('exit', flushBatch)
+
+    const write = (output) => {
+      output = String(output)
+      batch.push(output)
+      batchLength += output.length
+      if (batchLength >= BATCH_LENGTH) {
+        flushBatch()
+      } else if (!batchScheduled) {
+        batchScheduled = true
+        setImmediate(flushBatch)
+      }
+    }
+
     const redirectStdout = transform =>
       redirect(process.stdout, oldStdout, transform)
 
@@ -106,6 +154,10 @@ class Console extends events {
       this.emit('error', e)
     })
 
+    c.on('overflow', (policy, dropped) => {
+      this.emit('overflow', policy, dropped)
+    })
+
     c.on('resize', (c,r) => {
       process.stdout.columns = c
       process.stdout.rows = r
@@ -212,6 +264,38 @@ class Console extends events {
      */
     this.getState = () => c.state()
 
+    /**
+     Drops the commands entered in the console that have not started to run yet. Android only; on
+     iOS commands are not queued, and this does nothing.
+     @name Console#cancelCommands
+     @function
+     @returns {number} The number of commands dropped (always 0 on iOS)
+     */
+    this.cancelCommands = () =>
+      typeof c.cancelCommands === 'function' ? c.cancelCommands() : 0
+
+    /**
+     Returns how many commands entered in the console are waiting to run or running. Android only.
+     @name Console#pendingCommands
+     @function
+     @returns {number} The number of commands (always 0 on iOS)
+     */
+    this.pendingCommands = () =>
+      typeof c.pendingCommands === 'function' ? c.pendingCommands() : 0
+
+    /**
+     Returns counters and timings for the console's output pipeline, from output being written to it
+     being displayed. Totals are since the console's view was created. Android only.
+     @name Console#stats
+     @function
+     @returns {Object} <code>{ bytesParsed, escapeSequences, pendingBytes, parseMillis, flushMillis,
+                       renderMillis, renders, latencyHistogram, latencyP50, latencyP99 }</code>, where
+                       <code>latencyHistogram</code> maps an upper bound in milliseconds to the number of
+                       display updates whose oldest output had waited up to that long; or undefined if
+                       the console has no view yet or on iOS
+     */
+    this.stats = () => typeof c.stats === 'function' ? c.stats() : undefined
+
     function redirect(stream, old, transform) {
       if (old.write === undefined) {
         old.write = stream.write
@@ -223,12 +307,12 @@ class Console extends events {
         if (!old.transform) old.transform = x => x
 
         stream.write = (output) => {
-          c.write(old.transform(output))
+          write(old.transform(output))
           if (old.write) old.write.call(stream, output)
         }
 
         stream.clearScreenDown = () => {
-          c.write('\x1b[0J')
+          write('\x1b[0J')
           if (old.clearScreenDown) old.clearScreenDown()
         }
 
@@ -238,7 +322,7 @@ class Console extends events {
           else if (col<0) out+='\x1b['+(-col)+'D'
           if (r>0) out += '\x1b['+r+'B'
           else if (r<0) out+='\x1b['+(-r)+'A'
-          c.write(out)
+          write(out)
           if (old.moveCursor) old.moveCursor(col,r)
         }
       }
@@ -263,5 +347,11 @@ Emitted on error
 @event Console#error
 @param {string} - A human-readable error string
 */
+/**
+Emitted when output exceeds opts.maxPendingBytes, at most once a second while it continues
+@event Console#overflow
+@param {string} - The overflow policy in effect
+@param {number} - The number of bytes dropped since the last overflow event
+*/
 
 module.exports = Console
\ No newline at end of file
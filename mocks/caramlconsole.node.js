@@ -38,6 +38,17 @@ class Console extends events {
 
   write(out) {
   }
+
+  cancelCommands() {
+    return 0
+  }
+
+  pendingCommands() {
+    return 0
+  }
+
+  stats() {
+  }
 }
 
 module.exports = {